@@ -1,6 +1,10 @@
 package bitmap;
 
 import java.util.*;
+import java.util.concurrent.*;
+import machl.FeatureView;
+import machl.PackedBitmap;
+import machl.SparseFeatures;
 
 /**
  * <p>A Bitmap holds a matrix of bits (true or false, on or off, 1 or 0).</p>
@@ -8,9 +12,18 @@ import java.util.*;
  * @version 1.0
  */
 
-public class Bitmap {
-  private final float NORMALIZED_RADIUS = 0.30f; // radius of gyration to normalize the bitmap to, as a fraction of width
-  private float[][] map;
+public class Bitmap implements FeatureView {
+  static final float NORMALIZED_RADIUS = 0.30f; // radius of gyration to normalize the bitmap to, as a fraction of width
+  static final int PREPROCESS_VERSION = 1; // increase when preprocess() changes, so that cached datasets are rebuilt
+  private int nRows, nCols;
+  private float[] map; // the values in row-major order, map[r*nCols+c]
+
+  // buffers used by preprocess, one set per thread so that nothing is allocated per bitmap
+  private static final ThreadLocal<Scratch> scratch=new ThreadLocal<Scratch>() {
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
 
   /**
    * Create a binary map consisting of a specified number of rows and columns
@@ -18,7 +31,9 @@ public class Bitmap {
    * @param nCols number of columns
    */
   public Bitmap(int nRows, int nCols) {
-    map=new float[nRows][nCols];
+    this.nRows=nRows;
+    this.nCols=nCols;
+    map=new float[nRows*nCols];
   }
 
   /**
@@ -37,22 +52,36 @@ public class Bitmap {
       int nCols=Integer.parseInt(tok.nextToken());
       if (ntok-2<nRows*nCols)
         throw new RuntimeException("Bitmap is not correctly specified. Insufficient number of bits: "+spec);
-      map=new float[nRows][nCols];
-      for (int r=0; r<map.length; r++)
-        for (int c=0; c<map[r].length; c++)
-          map[r][c]=Float.parseFloat(tok.nextToken());
+      this.nRows=nRows;
+      this.nCols=nCols;
+      map=new float[nRows*nCols];
+      for (int i=0; i<map.length; i++)
+        map[i]=Float.parseFloat(tok.nextToken());
     } catch (NumberFormatException ex) {
       throw new RuntimeException("Bitmap is not correctly specified. Bits not correctly formatted: "+spec);
     }
     preprocess();
   }
 
+  /**
+   * Create a bitmap holding a copy of pixel values in row-major order. Unlike Bitmap(String), the bitmap
+   * is not preprocessed, so that a loader can preprocess many bitmaps at once with preprocessAll.
+   * @param nRows number of rows
+   * @param nCols number of columns
+   * @param values the values, row by row
+   */
+  Bitmap(int nRows, int nCols, float[] values) {
+    this.nRows=nRows;
+    this.nCols=nCols;
+    map=Arrays.copyOf(values, nRows*nCols);
+  }
+
   /**
    * Determine the number of rows that are used by the bitmap
    * @return the number of rows
    */
   public int getRows() {
-    return map.length;
+    return nRows;
   }
 
   /**
@@ -60,10 +89,10 @@ public class Bitmap {
    * @return the number of columns
    */
   public int getCols() {
-    if (map.length<=0)
+    if (nRows<=0)
       return 0;
     else
-      return map[0].length;
+      return nCols;
   }
 
   /**
@@ -73,12 +102,12 @@ public class Bitmap {
    * @param value the value
    */
   public void set(int row, int col, boolean value) {
-    if (row>=0 && row<map.length)
-     if (col>=0 && col<map[row].length) {
+    if (row>=0 && row<nRows)
+     if (col>=0 && col<nCols) {
        if (value)
-         map[row][col]=1.0f;
+         map[row*nCols+col]=1.0f;
        else
-         map[row][col]=0.0f;
+         map[row*nCols+col]=0.0f;
      }
   }
 
@@ -89,19 +118,51 @@ public class Bitmap {
    * @return the value
    */
   public boolean get(int row, int col) {
-    if (row>=0 && row<map.length)
-     if (col>=0 && col<map[row].length)
-       return map[row][col] > 0;
+    if (row>=0 && row<nRows)
+     if (col>=0 && col<nCols)
+       return map[row*nCols+col] > 0;
     return false;
   }
 
+  /**
+   * Get the pixel values in row-major order (not copied)
+   * @return the values
+   */
+  float[] getValues() {
+    return map;
+  }
+
+  /**
+   * Determine the number of features (pixels) that the bitmap presents to a learner
+   * @return the number of pixels
+   */
+  public int size() {
+    return map.length;
+  }
+
+  /**
+   * Get the value of a pixel by its row-major index, without copying the map
+   * @param index the index of the pixel (row*getCols()+col)
+   * @return the value
+   */
+  public double getValue(int index) {
+    return map[index];
+  }
+
+  /**
+   * Get the bit of a pixel by its row-major index, without copying the map
+   * @param index the index of the pixel (row*getCols()+col)
+   * @return true if the pixel is on
+   */
+  public boolean isSet(int index) {
+    return map[index] > 0;
+  }
+
   /**
    * Reset the bitmap
    */
   public void blank() {
-    for (int r=0; r<map.length; r++)
-      for (int c=0; c<map[r].length; c++)
-        map[r][c]=0.0f;
+    Arrays.fill(map, 0.0f);
   }
 
   /**
@@ -109,99 +170,124 @@ public class Bitmap {
    * @return the text string representing the bitmap
    */
   public String toString() {
-    StringBuffer buf=new StringBuffer(map.length+" "+(map.length>0?map[0].length+" ":"0 "));
-    for (int r=0; r<map.length; r++) {
-      for (int c=0; c<map[r].length; c++)
-        buf.append(Float.toString(map[r][c]) + " ");
-    }
+    StringBuffer buf=new StringBuffer(nRows+" "+(nRows>0?nCols+" ":"0 "));
+    for (int i=0; i<map.length; i++)
+      buf.append(Float.toString(map[i]) + " ");
     return buf.toString().trim();
   }
 
   /**
-   * Convert the map to a one-dimensional array of booleans
+   * Convert the map to a one-dimensional array of booleans.
+   * Learners that accept a FeatureView can read the bitmap itself instead.
    * @return the boolean array representing the bitmap
    */
   public boolean[] toBooleanArray() {
-    if (map.length<=0)
+    if (nRows<=0)
       return null;
-    boolean[] arr=new boolean[map.length*map[0].length];
-    for (int r=0; r<map.length; r++)
-      for (int c=0; c<map[r].length; c++)
-        arr[r*map[0].length+c]=(map[r][c] > 0);
+    boolean[] arr=new boolean[map.length];
+    for (int i=0; i<map.length; i++)
+      arr[i]=(map[i] > 0);
     return arr;
   }
 
   /**
-   * Convert the map to a one-dimensional array of doubles
+   * Convert the map to a vector of bits packed into long words (a pixel is on if its value is positive)
+   * @return the packed bits representing the bitmap
+   */
+  public PackedBitmap toPackedBitmap() {
+    if (nRows<=0)
+      return null;
+    long[] words=new long[(map.length+63)>>>6];
+    for (int i=0; i<map.length; i++)
+      if (map[i] > 0)
+        words[i>>>6]|=1L<<i;
+    return new PackedBitmap(map.length, words);
+  }
+
+  /**
+   * Convert the map to a list of the pixels that are not 0, e.g. to feed a neural network only with those
+   * @return the sparse features representing the bitmap
+   */
+  public SparseFeatures toSparseFeatures() {
+    int nonZero=0;
+    for (int i=0; i<map.length; i++)
+      if (map[i]!=0)
+        nonZero++;
+    int[] index=new int[nonZero];
+    double[] value=new double[nonZero];
+    int k=0;
+    for (int i=0; i<map.length; i++)
+      if (map[i]!=0) {
+        index[k]=i;
+        value[k++]=map[i];
+      }
+    return new SparseFeatures(map.length, index, value);
+  }
+
+  /**
+   * Convert the map to a one-dimensional array of doubles.
+   * Learners that accept a FeatureView can read the bitmap itself instead.
    * @return the double array representing the bitmap
    */
   public double[] toDoubleArray() {
-    if (map.length<=0)
+    if (nRows<=0)
       return null;
-    double[] arr=new double[map.length*map[0].length];
-    for (int r=0; r<map.length; r++)
-      for (int c=0; c<map[r].length; c++)
-        arr[r*map[0].length+c]=(double)map[r][c];
+    double[] arr=new double[map.length];
+    for (int i=0; i<map.length; i++)
+      arr[i]=(double)map[i];
     return arr;
   }
 
   /**
-   * Convert the map to an array of the 7 Hu Moment Invariants.  Not used in
-   * current implementation.
-   * @return the double array representing the moment characteristics of the bitmap.
+   * Computes the 7 Hu Moment Invariants of the pixels that are on, in a single pass over the map.
+   * The raw moments are summed row by row as exact integers and then converted to central moments,
+   * so no powers are computed per pixel.
+   * @return the 7 invariants, or NaN values if no pixel is on
    */
-  public double[] toMomentArray() {
-    int m = 0;  // area
-    int Mx = 0; // first moment in x direction
-    int My = 0; // first moment in y direction
-
+  public double[] huMoments() {
     int h = getRows();
     int w = getCols();
 
-    // calculate m, Mx and My
+    // raw moments m_pq = sum of x^p*y^q over the pixels that are on, with x the column and y the row
+    long m00 = 0, m10 = 0, m01 = 0, m20 = 0, m11 = 0, m02 = 0, m30 = 0, m21 = 0, m12 = 0, m03 = 0;
     for (int i = 0; i < h; i++) {
+      long n = 0, sx = 0, sxx = 0, sxxx = 0; // the moments of the row
+      int row = i*w;
       for (int j = 0; j < w; j++) {
-        if (map[i][j] > 0.0) {
-          m++;
-          My += i;
-          Mx += j;
+        if (map[row+j] > 0.0) {
+          n++;
+          sx += j;
+          sxx += (long)j*j;
+          sxxx += (long)j*j*j;
         }
       }
+      long y = i, yy = (long)i*i;
+      m00 += n;
+      m10 += sx;
+      m01 += y*n;
+      m20 += sxx;
+      m11 += y*sx;
+      m02 += yy*n;
+      m30 += sxxx;
+      m21 += y*sxx;
+      m12 += yy*sx;
+      m03 += yy*y*n;
     }
 
-    double Cx = (double)Mx/(double)m; // centroid, x
-    double Cy = (double)My/(double)m; // centroid, y
-
-    double n11 = 0;
-    double n20 = 0;
-    double n02 = 0;
-    double n30 = 0;
-    double n03 = 0;
-    double n21 = 0;
-    double n12 = 0;
-
-    for (int i = 0; i < h; i++) {
-      for (int j = 0; j < w; j++) {
-        if (map[i][j] > 0.0) {
-          double iRel = (double)i-Cx;
-          double jRel = (double)j-Cy;
-          n11 += centralMoment(jRel, iRel, 1, 1);
-          n20 += centralMoment(jRel, iRel, 2, 0);
-          n02 += centralMoment(jRel, iRel, 0, 2);
-          n30 += centralMoment(jRel, iRel, 3, 0);
-          n03 += centralMoment(jRel, iRel, 0, 3);
-          n21 += centralMoment(jRel, iRel, 2, 1);
-          n12 += centralMoment(jRel, iRel, 1, 2);
-        }
-      }
-    }
-    n11 /= Math.pow(m, 2);
-    n20 /= Math.pow(m, 2);
-    n02 /= Math.pow(m, 2);
-    n30 /= Math.pow(m, 2.5);
-    n03 /= Math.pow(m, 2.5);
-    n21 /= Math.pow(m, 2.5);
-    n12 /= Math.pow(m, 2.5);
+    double m = m00;
+    double cx = m10/m; // centroid, x
+    double cy = m01/m; // centroid, y
+
+    // central moments, normalized by m^(1+(p+q)/2) so that they are invariant to scale
+    double norm2 = m*m;
+    double norm3 = norm2*Math.sqrt(m);
+    double n20 = (m20 - cx*m10)/norm2;
+    double n02 = (m02 - cy*m01)/norm2;
+    double n11 = (m11 - cx*m01)/norm2;
+    double n30 = (m30 - 3*cx*m20 + 2*cx*cx*m10)/norm3;
+    double n03 = (m03 - 3*cy*m02 + 2*cy*cy*m01)/norm3;
+    double n21 = (m21 - 2*cx*m11 - cy*m20 + 2*cx*cx*m01)/norm3;
+    double n12 = (m12 - 2*cy*m11 - cx*m02 + 2*cy*cy*m10)/norm3;
 
     double[] moment = new double[7];
     moment[0] = n20 + n02;
@@ -214,7 +300,16 @@ public class Bitmap {
                 4*n11*(n30+n12)*(n21+n03);
     moment[6] = (3*n21-n03)*(n30+n12)*((n30+n12)*(n30+n12) - 3*(n21+n03)*(n21+n03)) -
                 (n30-3*n12)*(n21+n03)*(3*(n30+n12)*(n30+n12) - (n21+n03)*(n21+n03));
+    return moment;
+  }
 
+  /**
+   * Convert the map to an array of the 7 Hu Moment Invariants, shifted and scaled.
+   * See MomentFeatures for the moments as classifier input.
+   * @return the double array representing the moment characteristics of the bitmap.
+   */
+  public double[] toMomentArray() {
+    double[] moment = huMoments();
     moment[0] = moment[0]/50000 - 1;
     moment[1] = moment[1]/1e9 - 0.5;
     moment[2] = moment[2]/1e11 - 1;
@@ -225,19 +320,6 @@ public class Bitmap {
     return moment;
   }
 
-  /**
-   * Calculate the p-qth central moment of a particle wit displacement (x, y).
-   * Not used in current implementation.
-   * @param x x-displacement of particle
-   * @param y y-displacement of particle
-   * @param p x-order of moment
-   * @param q y-order of moment
-   * @return p-qth central moment of a particle wit displacement (x, y)
-   */
-  private double centralMoment(double x, double y, int p, int q) {
-    return Math.pow(x,p) * Math.pow(y,q);
-  }
-
   /**
    * Shifts the image such that its center of mass is in the centre, and scales
    * it such that the radius of gyration is NORMALIZED_RADIUS times the width
@@ -246,17 +328,42 @@ public class Bitmap {
    * http://www.codeproject.com/cs/media/imageprocessing4.asp?select=1312950
    */
   public void preprocess() {
+    Scratch s = scratch.get();
+    s.ensureCapacity(map.length, getCols());
+    System.arraycopy(map, 0, s.map, 0, map.length);
+    preprocess(s.map, this.map, s);
+  }
+
+  /**
+   * Preprocesses many bitmaps, splitting the work across the threads of the common fork-join pool.
+   * @param bitmaps the bitmaps to preprocess
+   */
+  public static void preprocessAll(Bitmap[] bitmaps) {
+    ForkJoinPool.commonPool().invoke(new PreprocessTask(bitmaps, 0, bitmaps.length));
+  }
+
+  /**
+   * Computes the preprocessed version of the specified values (see preprocess()).
+   * @param map the values, row by row
+   * @param map2 receives the preprocessed values
+   * @param s the buffers for the source locations
+   */
+  private void preprocess(float[] map, float[] map2, Scratch s) {
     int h = getRows();
     int w = getCols();
 
     float m = 0, Mx = 0, My = 0, I = 0;
-    // calculate m, Mx, My, I
+    // calculate m, Mx, My, I (most pixels are 0 and adding nothing leaves the sums unchanged)
     for (int i = 0; i < h; i++) {
+      int row = i*w;
       for (int j = 0; j < w; j++) {
-        m += map[i][j];
-        My += i*map[i][j];
-        Mx += j*map[i][j];
-        I += (i*i+j*j)*map[i][j];
+        float v = map[row+j];
+        if (v != 0) {
+          m += v;
+          My += i*v;
+          Mx += j*v;
+          I += (i*i+j*j)*v;
+        }
       }
     }
 
@@ -268,39 +375,96 @@ public class Bitmap {
     //                   desired radius        / current radius of gyration
     float scaleFactor = (NORMALIZED_RADIUS * h) /(float) Math.sqrt(I / m - Cx*Cx - Cy*Cy);
 
-    float[][] map2=new float[h][w];
+    // the source column only depends on the target column, and the source row only on the target row,
+    // so the locations are calculated once per column and once per row (floor is -1 if out of bounds)
+    int[] floor_x = s.floor_x;
+    int[] ceil_x = s.ceil_x;
+    float[] fraction_x = s.fraction_x;
+    for (int j = 0; j < w; j++) {
+      // calculate location of source pixel, before scaling and shifting
+      floor_x[j] = (int)Math.floor((j-shiftx-Cx)/scaleFactor)+(int)Cx;
+      fraction_x[j] = (j-shiftx-Cx)/scaleFactor+Cx - floor_x[j];
+      ceil_x[j] = floor_x[j] + 1;
+      if (ceil_x[j] >= w) ceil_x[j] = floor_x[j];
+      if (floor_x[j] < 0 || floor_x[j] >= w) floor_x[j] = -1;
+    }
+
+    Arrays.fill(map2, 0, h*w, 0.0f);
     // bilinear scaling
     for (int i = 0; i < h; i++) {
+      int floor_y = (int)Math.floor((i-shifty-Cy)/scaleFactor)+(int)Cy;
+      if (floor_y < 0 || floor_y >= h) // if source row is outside boundary
+        continue;
+      int ceil_y = floor_y + 1;
+      if (ceil_y >= h) ceil_y = floor_y;
+      float fraction_y = (i-shifty-Cy)/scaleFactor+Cy - floor_y;
+      float one_minus_y = 1.0f - fraction_y;
+      int row1 = floor_y*w, row2 = ceil_y*w, row = i*w;
+
       for (int j = 0; j < w; j++) {
-        // calculate location of source pixel, before scaling and shifting
-        int floor_x = (int)Math.floor((j-shiftx-Cx)/scaleFactor)+(int)Cx;
-        int floor_y = (int)Math.floor((i-shifty-Cy)/scaleFactor)+(int)Cy;
-
-        if (floor_x >= 0 && floor_x < w &&
-            floor_y >= 0 && floor_y < h) { // if source pixel is within boundary
-          int ceil_x = floor_x + 1;
-          if (ceil_x >= w) ceil_x = floor_x;
-          int ceil_y = floor_y + 1;
-          if (ceil_y >= h) ceil_y = floor_y;
-          float fraction_x = (j-shiftx-Cx)/scaleFactor+Cx - floor_x;
-          float fraction_y = (i-shifty-Cy)/scaleFactor+Cy - floor_y;
-          float one_minus_x = 1.0f - fraction_x;
-          float one_minus_y = 1.0f - fraction_y;
-
-          // the four surrounding source pixels
-          float c1 = map[floor_y][floor_x];
-          float c2 = map[floor_y][ceil_x];
-          float c3 = map[ceil_y][floor_x];
-          float c4 = map[ceil_y][ceil_x];
-
-          /// the bilinear average
-          map2[i][j] = one_minus_y*(one_minus_x*c1 + fraction_x*c2) +
-                       fraction_y*(one_minus_x*c3 + fraction_x*c4);
-        }
+        int fx = floor_x[j];
+        if (fx < 0) // if source column is outside boundary
+          continue;
+        int cx = ceil_x[j];
+        float one_minus_x = 1.0f - fraction_x[j];
+
+        // the four surrounding source pixels
+        float c1 = map[row1+fx];
+        float c2 = map[row1+cx];
+        float c3 = map[row2+fx];
+        float c4 = map[row2+cx];
+
+        /// the bilinear average
+        map2[row+j] = one_minus_y*(one_minus_x*c1 + fraction_x[j]*c2) +
+                      fraction_y*(one_minus_x*c3 + fraction_x[j]*c4);
+      }
+    }
+  }
+
+  /**
+   * The buffers used by preprocess: a copy of the source values and the source location of each column.
+   */
+  private static class Scratch {
+    float[] map = new float[0];
+    int[] floor_x = new int[0];
+    int[] ceil_x = new int[0];
+    float[] fraction_x = new float[0];
+
+    void ensureCapacity(int size, int w) {
+      if (map.length < size)
+        map = new float[size];
+      if (floor_x.length < w) {
+        floor_x = new int[w];
+        ceil_x = new int[w];
+        fraction_x = new float[w];
+      }
+    }
+  }
+
+  /**
+   * Preprocesses a range of bitmaps, splitting it in halves until the ranges are small.
+   */
+  private static class PreprocessTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private static final int THRESHOLD = 64; // bitmaps preprocessed by one task without splitting further
+    private Bitmap[] bitmaps;
+    private int from, to;
+
+    PreprocessTask(Bitmap[] bitmaps, int from, int to) {
+      this.bitmaps = bitmaps;
+      this.from = from;
+      this.to = to;
+    }
 
+    protected void compute() {
+      if (to - from <= THRESHOLD) {
+        for (int i = from; i < to; i++)
+          bitmaps[i].preprocess();
+      } else {
+        int mid = (from + to) >>> 1;
+        invokeAll(new PreprocessTask(bitmaps, from, mid), new PreprocessTask(bitmaps, mid, to));
       }
     }
-    this.map = map2;
   }
 
 }
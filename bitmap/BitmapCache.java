@@ -0,0 +1,150 @@
+package bitmap;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.*;
+
+/**
+ * <p>An on-disk cache of preprocessed text-files of bitmaps, used by the loaders in LetterClassifier.</p>
+ * The first time a text-file is loaded, its preprocessed bitmaps are stored as a BitmapFile named by a
+ * hash of the contents of the text-file and of the preprocessing parameters. Later loads of the same
+ * contents map that file instead of parsing and preprocessing again. Changing the file, NORMALIZED_RADIUS
+ * or Bitmap.PREPROCESS_VERSION gives a new name, so stale entries are never read.
+ * The cache directory is set by the system property bitmap.cache (default: bitmap-cache in the temporary
+ * directory); set it to "off" to disable the cache.
+ */
+
+public class BitmapCache {
+
+  /**
+   * Load a text-file with classified bitmaps through the cache.
+   * @param filename the name of the text-file
+   * @return the classified bitmaps
+   * @throws IOException if the file operation fails
+   */
+  public static ClassifiedBitmap[] loadClassified(String filename) throws IOException {
+    File cached=cacheFile(filename, true);
+    if (cached!=null && cached.exists()) {
+      try {
+        return BitmapFile.open(cached.getPath()).getClassifiedBitmaps();
+      } catch (IOException ex) {
+        ; // a damaged entry, parse the text-file again and replace it
+      }
+    }
+    ClassifiedBitmap[] bitmaps=BitmapParser.parseClassified(filename);
+    store(cached, bitmaps);
+    return bitmaps;
+  }
+
+  /**
+   * Map the cache entry of a text-file with classified bitmaps, storing it first if there is none, so that the
+   * bitmaps can be read without copying them (see Samples).
+   * @param filename the name of the text-file
+   * @return the mapped entry, or null if the cache is disabled or can not hold the bitmaps
+   * @throws IOException if the file operation fails
+   */
+  public static BitmapFile openClassified(String filename) throws IOException {
+    File cached=cacheFile(filename, true);
+    if (cached==null)
+      return null;
+    if (cached.exists()) {
+      try {
+        return BitmapFile.open(cached.getPath());
+      } catch (IOException ex) {
+        ; // a damaged entry, parse the text-file again and replace it
+      }
+    }
+    store(cached, BitmapParser.parseClassified(filename));
+    return cached.exists()?BitmapFile.open(cached.getPath()):null;
+  }
+
+  /**
+   * Load a text-file with unclassified bitmaps through the cache.
+   * @param filename the name of the text-file
+   * @return the bitmaps
+   * @throws IOException if the file operation fails
+   */
+  public static Bitmap[] loadUnclassified(String filename) throws IOException {
+    File cached=cacheFile(filename, false);
+    if (cached!=null && cached.exists()) {
+      try {
+        return BitmapFile.open(cached.getPath()).getBitmaps();
+      } catch (IOException ex) {
+        ; // a damaged entry, parse the text-file again and replace it
+      }
+    }
+    Bitmap[] bitmaps=BitmapParser.parseUnclassified(filename);
+    store(cached, bitmaps);
+    return bitmaps;
+  }
+
+  /**
+   * Determine the cache directory
+   * @return the directory, or null if the cache is disabled
+   */
+  public static File getDirectory() {
+    String dir=System.getProperty("bitmap.cache");
+    if (dir==null)
+      return new File(System.getProperty("java.io.tmpdir"), "bitmap-cache");
+    if (dir.equals("off"))
+      return null;
+    return new File(dir);
+  }
+
+  /**
+   * Determine the name of the cache entry for a text-file
+   * @return the entry, or null if the cache is disabled
+   */
+  private static File cacheFile(String filename, boolean classified) throws IOException {
+    File dir=getDirectory();
+    if (dir==null)
+      return null;
+    MessageDigest md;
+    try {
+      md=MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      return null;
+    }
+    md.update((Float.floatToIntBits(Bitmap.NORMALIZED_RADIUS)+" "+Bitmap.PREPROCESS_VERSION+" "+classified+"\n").getBytes("US-ASCII"));
+    FileChannel channel=FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+    try {
+      ByteBuffer buf=ByteBuffer.allocate(1<<20);
+      while (channel.read(buf)>=0) {
+        buf.flip();
+        md.update(buf);
+        buf.clear();
+      }
+    } finally {
+      channel.close();
+    }
+    StringBuffer name=new StringBuffer();
+    for (byte b : md.digest())
+      name.append(Character.forDigit((b>>4)&0xf, 16)).append(Character.forDigit(b&0xf, 16));
+    return new File(dir, name.append(".bin").toString());
+  }
+
+  /**
+   * Store bitmaps as a cache entry. The entry is written to a temporary file first and then moved
+   * into place, so that concurrent loaders never see a partial entry.
+   */
+  private static void store(File cached, Bitmap[] bitmaps) {
+    if (cached==null)
+      return;
+    for (int i=1; i<bitmaps.length; i++)
+      if (bitmaps[i].getRows()!=bitmaps[0].getRows() || bitmaps[i].getCols()!=bitmaps[0].getCols())
+        return; // a BitmapFile can only hold bitmaps of the same size
+    File tmp=null;
+    try {
+      cached.getParentFile().mkdirs();
+      tmp=File.createTempFile("bitmaps", ".tmp", cached.getParentFile());
+      BitmapFile.write(tmp.getPath(), bitmaps);
+      Files.move(tmp.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException ex) {
+      System.err.println("Could not write bitmap cache "+cached+": "+ex.getMessage());
+      if (tmp!=null)
+        tmp.delete();
+    }
+  }
+}
@@ -0,0 +1,276 @@
+package bitmap;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import machl.FeatureView;
+
+/**
+ * <p>A binary file of preprocessed bitmaps of the same size, which is memory-mapped when read.</p>
+ * Format (little-endian): a header of HEADER_SIZE bytes holding the magic bytes "LBMP", the version,
+ * the number of rows and columns, the flags (1 if classified) and the number of records as a long,
+ * followed by the records. Each record holds the target class as an int (-1 if unclassified) and the
+ * preprocessed values of the bitmap as floats, row by row.
+ */
+
+public class BitmapFile {
+  private static final int MAGIC=('L'<<24)|('B'<<16)|('M'<<8)|'P';
+  private static final int VERSION=1;
+  private static final int HEADER_SIZE=32;
+  private static final int CLASSIFIED=1;
+
+  private int nRows, nCols;
+  private boolean classified;
+  private int nRecords;
+  private int recordSize;         // bytes per record
+  private int recordsPerSegment;  // the file is mapped in segments of whole records, each less than 2GB
+  private FloatBuffer[] values;   // the mapped segments viewed as floats
+  private IntBuffer[] targets;    // the mapped segments viewed as ints
+
+  private BitmapFile(FileChannel channel, String filename) throws IOException {
+    ByteBuffer header=ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    while (header.hasRemaining())
+      if (channel.read(header, header.position())<0)
+        throw new IOException("Truncated header in bitmap file "+filename);
+    header.flip();
+    if (header.order(ByteOrder.BIG_ENDIAN).getInt()!=MAGIC)
+      throw new IOException("Not a bitmap file: "+filename);
+    int version=header.order(ByteOrder.LITTLE_ENDIAN).getInt();
+    if (version!=VERSION)
+      throw new IOException("Unsupported version "+version+" of bitmap file "+filename);
+    nRows=header.getInt();
+    nCols=header.getInt();
+    classified=(header.getInt()&CLASSIFIED)!=0;
+    long count=header.getLong();
+    // a record must fit in a segment, which is less than 2GB
+    if (nRows<=0 || nCols<=0 || (long)nRows*nCols>(Integer.MAX_VALUE-4)/4)
+      throw new IOException("Corrupt bitmap size "+nRows+"x"+nCols+" in bitmap file "+filename);
+    recordSize=4+4*nRows*nCols;
+    if (count<0 || count>Integer.MAX_VALUE || channel.size()<HEADER_SIZE+count*recordSize)
+      throw new IOException("Corrupt record count "+count+" in bitmap file "+filename);
+    nRecords=(int)count;
+    recordsPerSegment=Integer.MAX_VALUE/recordSize;
+    int nSegments=(nRecords+recordsPerSegment-1)/recordsPerSegment;
+    values=new FloatBuffer[nSegments];
+    targets=new IntBuffer[nSegments];
+    for (int s=0; s<nSegments; s++) {
+      int n=Math.min(recordsPerSegment, nRecords-s*recordsPerSegment);
+      ByteBuffer segment=channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE+(long)s*recordsPerSegment*recordSize,
+                                     (long)n*recordSize).order(ByteOrder.LITTLE_ENDIAN);
+      values[s]=segment.asFloatBuffer();
+      targets[s]=segment.asIntBuffer();
+    }
+  }
+
+  /**
+   * Opens and maps a bitmap file. The file itself does not need to remain open.
+   * @param filename the name of the file
+   * @return the mapped file
+   * @throws IOException if the file could not be read or is not a bitmap file
+   */
+  public static BitmapFile open(String filename) throws IOException {
+    FileChannel channel=FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+    try {
+      return new BitmapFile(channel, filename);
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Determine if a file is a bitmap file (rather than a text file of bitmaps)
+   * @param filename the name of the file
+   * @return true if the file starts with the magic bytes of a bitmap file
+   * @throws IOException if the file could not be read
+   */
+  public static boolean isBitmapFile(String filename) throws IOException {
+    DataInputStream in=new DataInputStream(new FileInputStream(filename));
+    try {
+      return in.readInt()==MAGIC;
+    } catch (EOFException ex) {
+      return false;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes bitmaps, which must all be of the same size, to a bitmap file.
+   * The values are written as they are, i.e. they are expected to be preprocessed already.
+   * @param filename the name of the file
+   * @param bitmaps the bitmaps; if all of them are ClassifiedBitmaps the file is classified
+   * @throws IOException if the file could not be written
+   */
+  public static void write(String filename, Bitmap[] bitmaps) throws IOException {
+    int nRows=bitmaps.length>0?bitmaps[0].getRows():0;
+    int nCols=bitmaps.length>0?bitmaps[0].getCols():0;
+    boolean classified=true;
+    for (int i=0; i<bitmaps.length; i++) {
+      if (bitmaps[i].getRows()!=nRows || bitmaps[i].getCols()!=nCols)
+        throw new IOException("Bitmap "+i+" is "+bitmaps[i].getRows()+"x"+bitmaps[i].getCols()+", expected "+nRows+"x"+nCols);
+      classified&=bitmaps[i] instanceof ClassifiedBitmap;
+    }
+    FileChannel channel=FileChannel.open(Paths.get(filename), StandardOpenOption.WRITE,
+                                         StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      ByteBuffer buf=ByteBuffer.allocate(1<<16).order(ByteOrder.LITTLE_ENDIAN);
+      buf.order(ByteOrder.BIG_ENDIAN).putInt(MAGIC).order(ByteOrder.LITTLE_ENDIAN).putInt(VERSION).putInt(nRows).putInt(nCols).putInt(classified?CLASSIFIED:0).putLong(bitmaps.length);
+      while (buf.position()<HEADER_SIZE)
+        buf.put((byte)0);
+      for (int i=0; i<bitmaps.length; i++) {
+        float[] map=bitmaps[i].getValues();
+        if (buf.remaining()<4+4*map.length)
+          flush(channel, buf);
+        if (buf.remaining()<4+4*map.length)
+          buf=ByteBuffer.allocate(4+4*map.length).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(classified?((ClassifiedBitmap)bitmaps[i]).getTarget():-1);
+        for (int v=0; v<map.length; v++)
+          buf.putFloat(map[v]);
+      }
+      flush(channel, buf);
+    } finally {
+      channel.close();
+    }
+  }
+
+  private static void flush(FileChannel channel, ByteBuffer buf) throws IOException {
+    buf.flip();
+    while (buf.hasRemaining())
+      channel.write(buf);
+    buf.clear();
+  }
+
+  /**
+   * Determine the number of rows of the bitmaps
+   * @return the number of rows
+   */
+  public int getRows() {
+    return nRows;
+  }
+
+  /**
+   * Determine the number of columns of the bitmaps
+   * @return the number of columns
+   */
+  public int getCols() {
+    return nCols;
+  }
+
+  /**
+   * Determine if the records hold a target class
+   * @return true if the file is classified
+   */
+  public boolean isClassified() {
+    return classified;
+  }
+
+  /**
+   * Determine the number of records (bitmaps) in the file
+   * @return the number of records
+   */
+  public int size() {
+    return nRecords;
+  }
+
+  /**
+   * Get the target class of a record
+   * @param record the index of the record
+   * @return the target class, or -1 if the file is unclassified
+   */
+  public int getTarget(int record) {
+    return targets[record/recordsPerSegment].get((record%recordsPerSegment)*(recordSize/4));
+  }
+
+  /**
+   * Get the values of a record as a view of the mapped file (nothing is copied).
+   * @param record the index of the record
+   * @return the values of the record, row by row
+   */
+  public FeatureView getRecord(int record) {
+    return new Record(values[record/recordsPerSegment], (record%recordsPerSegment)*(recordSize/4)+1, nRows*nCols);
+  }
+
+  /**
+   * Copy a record into a bitmap (which is not preprocessed again)
+   * @param record the index of the record
+   * @return the bitmap
+   */
+  public Bitmap getBitmap(int record) {
+    Bitmap bmap=new Bitmap(nRows, nCols);
+    copyValues(record, bmap);
+    return bmap;
+  }
+
+  /**
+   * Copy a record into a classified bitmap (which is not preprocessed again)
+   * @param record the index of the record
+   * @return the classified bitmap
+   */
+  public ClassifiedBitmap getClassifiedBitmap(int record) {
+    ClassifiedBitmap bmap=new ClassifiedBitmap(nRows, nCols, getTarget(record));
+    copyValues(record, bmap);
+    return bmap;
+  }
+
+  /**
+   * Copy the values of a record into a bitmap of the same size, e.g. to reuse one bitmap for many records
+   * @param record the index of the record
+   * @param bmap the bitmap
+   */
+  void copyValues(int record, Bitmap bmap) {
+    values[record/recordsPerSegment].get((record%recordsPerSegment)*(recordSize/4)+1, bmap.getValues());
+  }
+
+  /**
+   * Copy all records into bitmaps
+   * @return the bitmaps
+   */
+  public Bitmap[] getBitmaps() {
+    Bitmap[] bitmaps=new Bitmap[nRecords];
+    for (int i=0; i<nRecords; i++)
+      bitmaps[i]=getBitmap(i);
+    return bitmaps;
+  }
+
+  /**
+   * Copy all records into classified bitmaps
+   * @return the classified bitmaps
+   * @throws IOException if the file is unclassified
+   */
+  public ClassifiedBitmap[] getClassifiedBitmaps() throws IOException {
+    if (!classified)
+      throw new IOException("The bitmap file does not hold target classes");
+    ClassifiedBitmap[] bitmaps=new ClassifiedBitmap[nRecords];
+    for (int i=0; i<nRecords; i++)
+      bitmaps[i]=getClassifiedBitmap(i);
+    return bitmaps;
+  }
+
+  /**
+   * A record of the mapped file viewed as features.
+   */
+  private static class Record implements FeatureView {
+    private FloatBuffer buf;
+    private int offset;
+    private int length;
+
+    Record(FloatBuffer buf, int offset, int length) {
+      this.buf=buf;
+      this.offset=offset;
+      this.length=length;
+    }
+
+    public int size() {
+      return length;
+    }
+
+    public double getValue(int index) {
+      return buf.get(offset+index);
+    }
+
+    public boolean isSet(int index) {
+      return buf.get(offset+index) > 0;
+    }
+  }
+}
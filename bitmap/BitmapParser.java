@@ -0,0 +1,283 @@
+package bitmap;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * <p>A parser for text files holding one bitmap per line, in the format of Bitmap(String) or
+ * ClassifiedBitmap(String).</p>
+ * The file is read as bytes and every line is tokenized and parsed in a single pass, reusing the same
+ * line and pixel buffers. Large files are split into chunks at line boundaries, the chunks are parsed in
+ * parallel and the bitmaps are returned in the order of the file. Rows with format problems are ignored.
+ * The bitmaps are preprocessed together, in parallel, once the whole file has been parsed.
+ */
+
+public class BitmapParser {
+  private static final int MIN_CHUNK=1<<20;    // files are not split into chunks smaller than this (bytes)
+  private static final int BUFFER_SIZE=1<<16;  // the number of bytes read from the file at a time
+  private static final double[] POW10={1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8};
+
+  private boolean classified;      // if the last token of each line is the target class
+  private ByteBuffer buffer=ByteBuffer.allocate(BUFFER_SIZE);
+  private byte[] line=new byte[8192];
+  private int lineLength;
+  private float[] values=new float[1024];
+  private int pos;                 // the position in the line
+  private int tokStart, tokEnd;    // the bounds of the current token in the line
+
+  private BitmapParser(boolean classified) {
+    this.classified=classified;
+  }
+
+  /**
+   * Parse a text-file with classified bitmaps. It ignores rows with format problems.
+   * @param filename the name of the file
+   * @return the classified bitmaps, in the order of the file
+   * @throws IOException if the file operation fails
+   */
+  public static ClassifiedBitmap[] parseClassified(String filename) throws IOException {
+    List<Bitmap> bmaps=parse(filename, true);
+    ClassifiedBitmap[] bitmaps=bmaps.toArray(new ClassifiedBitmap[bmaps.size()]);
+    Bitmap.preprocessAll(bitmaps);
+    return bitmaps;
+  }
+
+  /**
+   * Parse a text-file with unclassified bitmaps. It ignores rows with format problems.
+   * @param filename the name of the file
+   * @return the bitmaps, in the order of the file
+   * @throws IOException if the file operation fails
+   */
+  public static Bitmap[] parseUnclassified(String filename) throws IOException {
+    List<Bitmap> bmaps=parse(filename, false);
+    Bitmap[] bitmaps=bmaps.toArray(new Bitmap[bmaps.size()]);
+    Bitmap.preprocessAll(bitmaps);
+    return bitmaps;
+  }
+
+  private static List<Bitmap> parse(String filename, final boolean classified) throws IOException {
+    final FileChannel channel=FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+    try {
+      long size=channel.size();
+      int nChunks=(int)Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), size/MIN_CHUNK));
+      if (nChunks==1)
+        return new BitmapParser(classified).parseChunk(channel, 0, size);
+      List<Callable<List<Bitmap>>> tasks=new ArrayList<Callable<List<Bitmap>>>();
+      for (int i=0; i<nChunks; i++) {
+        final long start=size*i/nChunks;
+        final long end=size*(i+1)/nChunks;
+        tasks.add(new Callable<List<Bitmap>>() {
+          public List<Bitmap> call() throws IOException {
+            return new BitmapParser(classified).parseChunk(channel, start, end);
+          }
+        });
+      }
+      List<Bitmap> bmaps=new ArrayList<Bitmap>();
+      for (Future<List<Bitmap>> result : ForkJoinPool.commonPool().invokeAll(tasks))
+        bmaps.addAll(result.get());
+      return bmaps;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while parsing "+filename);
+    } catch (ExecutionException ex) {
+      Throwable cause=ex.getCause();
+      if (cause instanceof IOException)
+        throw (IOException)cause;
+      if (cause instanceof Error)
+        throw (Error)cause;
+      throw (RuntimeException)cause;
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Parse the lines that start within [start, end) of the file. The last line may extend beyond end.
+   */
+  private List<Bitmap> parseChunk(FileChannel channel, long start, long end) throws IOException {
+    List<Bitmap> bmaps=new ArrayList<Bitmap>();
+    // unless we are at the start of the file, the first line belongs to the previous chunk up to and
+    // including its terminator; reading from start-1 finds a line starting exactly at start
+    boolean skipping=start>0;
+    long filePos=skipping?start-1:start;
+    long lineStart=-1;
+    lineLength=0;
+    while (true) {
+      buffer.clear();
+      int n=channel.read(buffer, filePos);
+      if (n<=0)
+        break;
+      byte[] bytes=buffer.array();
+      int i=0;
+      while (i<n) {
+        if (skipping) {
+          while (i<n && !isTerminator(bytes[i]))
+            i++;
+          if (i<n) {
+            skipping=false;
+            i++;
+          }
+          continue;
+        }
+        if (lineLength==0) {
+          // skip empty lines and stop at the first line of the next chunk
+          while (i<n && isTerminator(bytes[i]))
+            i++;
+          if (i==n)
+            break;
+          lineStart=filePos+i;
+          if (lineStart>=end)
+            return bmaps;
+        }
+        int from=i;
+        while (i<n && !isTerminator(bytes[i]))
+          i++;
+        appendLine(bytes, from, i-from);
+        if (i<n) { // the line is complete
+          parseLine(bmaps);
+          lineLength=0;
+          i++;
+        }
+      }
+      filePos+=n;
+    }
+    if (lineLength>0)
+      parseLine(bmaps);
+    return bmaps;
+  }
+
+  private static boolean isTerminator(byte b) {
+    return b=='\n' || b=='\r';
+  }
+
+  private void appendLine(byte[] bytes, int from, int length) {
+    if (lineLength+length>line.length)
+      line=Arrays.copyOf(line, Math.max(line.length*2, lineLength+length));
+    System.arraycopy(bytes, from, line, lineLength, length);
+    lineLength+=length;
+  }
+
+  /**
+   * Parse the current line and add the bitmap to the list, or ignore the line if it does not conform
+   * to the format.
+   */
+  private void parseLine(List<Bitmap> bmaps) {
+    pos=0;
+    try {
+      if (!nextToken())
+        return;
+      int nRows=parseInt();
+      if (!nextToken())
+        return;
+      int nCols=parseInt();
+      if (nRows<0 || nCols<0 || (long)nRows*nCols>Integer.MAX_VALUE)
+        return;
+      int nValues=nRows*nCols;
+      if (values.length<nValues)
+        values=new float[nValues];
+      for (int i=0; i<nValues; i++) {
+        if (!nextToken())
+          return;
+        values[i]=parseFloat();
+      }
+      if (classified) {
+        // the target class is the last token on the line
+        while (nextToken())
+          ;
+        int target=parseInt();
+        bmaps.add(new ClassifiedBitmap(nRows, nCols, values, target));
+      } else
+        bmaps.add(new Bitmap(nRows, nCols, values));
+    } catch (RuntimeException ex) {
+      ; // the line does not conform to the Bitmap format or does not specify the target class correctly
+    }
+  }
+
+  /**
+   * Move to the next token of the line (the delimiters are the same as for Bitmap(String)).
+   * @return false if there are no more tokens, in which case the current token is left unchanged
+   */
+  private boolean nextToken() {
+    while (pos<lineLength && isDelimiter(line[pos]))
+      pos++;
+    if (pos==lineLength)
+      return false;
+    tokStart=pos;
+    while (pos<lineLength && !isDelimiter(line[pos]))
+      pos++;
+    tokEnd=pos;
+    return true;
+  }
+
+  private static boolean isDelimiter(byte b) {
+    return b==' ' || b=='\t' || b==',';
+  }
+
+  /**
+   * Parse the current token as Integer.parseInt would.
+   */
+  private int parseInt() {
+    int i=tokStart;
+    boolean negative=false;
+    if (line[i]=='-' || line[i]=='+') {
+      negative=line[i]=='-';
+      i++;
+    }
+    int nDigits=tokEnd-i;
+    if (nDigits<1 || nDigits>9)
+      return Integer.parseInt(tokenString());
+    int value=0;
+    for (; i<tokEnd; i++) {
+      int digit=line[i]-'0';
+      if (digit<0 || digit>9)
+        return Integer.parseInt(tokenString());
+      value=value*10+digit;
+    }
+    return negative?-value:value;
+  }
+
+  /**
+   * Parse the current token as Float.parseFloat would. Plain decimals with few digits are computed
+   * directly: the significand and the power of ten are exact doubles, and with at most 8 fraction
+   * digits the double quotient rounds to the same float as the decimal itself. Anything else is
+   * handed to Float.parseFloat.
+   */
+  private float parseFloat() {
+    int i=tokStart;
+    boolean negative=false;
+    if (line[i]=='-' || line[i]=='+') {
+      negative=line[i]=='-';
+      i++;
+    }
+    long significand=0;
+    int nDigits=0;
+    int nFraction=-1; // digits after the point, -1 if there is no point
+    for (; i<tokEnd; i++) {
+      byte b=line[i];
+      if (b>='0' && b<='9') {
+        significand=significand*10+(b-'0');
+        nDigits++;
+        if (nFraction>=0)
+          nFraction++;
+      } else if (b=='.' && nFraction<0)
+        nFraction=0;
+      else
+        return Float.parseFloat(tokenString());
+    }
+    if (nDigits==0 || nDigits>15 || nFraction>=POW10.length)
+      return Float.parseFloat(tokenString());
+    double value=significand;
+    if (nFraction>0)
+      value/=POW10[nFraction];
+    return (float)(negative?-value:value);
+  }
+
+  private String tokenString() {
+    return new String(line, tokStart, tokEnd-tokStart, Charset.defaultCharset());
+  }
+}
@@ -0,0 +1,190 @@
+package bitmap;
+
+import java.util.*;
+import machl.ConvNet;
+
+/**
+ * <p>A convolutional neural network handwritten letter recognizer (see ConvNet). The network reads the pixels
+ * of the bitmap through stages of convolution and pooling, so it learns strokes wherever they are in the bitmap,
+ * with far fewer weights than a dense network of the same accuracy.</p>
+ */
+
+public class CNNClassifier extends LetterClassifier {
+  private static final long serialVersionUID = 1L;
+
+  private static String name="CNN Classifier 1";
+  private ConvNet net;
+  private Random rand;
+  private double[][] targets; // target vectors
+  private transient volatile ThreadLocal<ConvNet.Workspace> workspaces; // the workspace of each testing thread
+
+  /**
+   * Identifies the classifier, e.g. by the name of the author/contender, or by whatever you want to
+   * identify this instance when loaded elsewhere.
+   * @return the identifier
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Classifies the bitmap
+   * @param map the bitmap to classify
+   * @return the probabilities of all the classes (should add up to 1).
+   */
+  public double[] test(Bitmap map) {
+    return net.feedforward(map, workspace()).clone(); // the workspace is reused by the next call
+  }
+
+  /**
+   * Classifies the bitmap into an array of the caller
+   * @param map the bitmap to classify
+   * @param out receives the probabilities of all the classes
+   * @return out
+   */
+  public double[] test(Bitmap map, double[] out) {
+    double[] o=net.feedforward(map, workspace());
+    System.arraycopy(o, 0, out, 0, o.length);
+    return out;
+  }
+
+  public int index(Bitmap map) {
+    double[] out=net.feedforward(map, workspace());
+    int best=0;
+    for (int i=0; i<out.length; i++) {
+      if (out[i]>out[best])
+        best=i;
+    }
+    return best;
+  }
+
+  /**
+   * Determine the workspace for the calling thread, so that test can be called by several threads at once.
+   * @return the workspace
+   */
+  private ConvNet.Workspace workspace() {
+    ThreadLocal<ConvNet.Workspace> local=workspaces;
+    if (local==null)
+      workspaces=local=new ThreadLocal<ConvNet.Workspace>();
+    ConvNet.Workspace ws=local.get();
+    if (ws==null) {
+      ws=net.newWorkspace();
+      local.set(ws);
+    }
+    return ws;
+  }
+
+  /**
+   * Determine the number of weights and biases of the network
+   * @return the number of parameters
+   */
+  public int getParameterCount() {
+    return net.getParameterCount();
+  }
+
+  /**
+   * Trains the network on randomly picked samples from specified training data.
+   * @param maps the bitmaps which are used as training inputs including targets
+   * @param nPresentations the number of samples to present
+   * @param eta the learning rate, e.g. 0.01
+   */
+  public void train(ClassifiedBitmap[] maps, int nPresentations, double eta) {
+    train(Samples.of(maps), nPresentations, eta);
+  }
+
+  /**
+   * Trains the network as train(maps, nPresentations, eta), on samples of pixels
+   * @param samples the samples of pixels, e.g. the records of a mapped file
+   * @param nPresentations the number of samples to present
+   * @param eta the learning rate, e.g. 0.01
+   */
+  void train(Samples samples, int nPresentations, double eta) {
+    ConvNet.Workspace ws=workspace();
+    for (int p=0; p<nPresentations; p++) {
+      int sample=rand.nextInt(samples.size());
+      net.train(samples.inputs[sample], targets[samples.classes[sample]], eta, ws);
+    }
+  }
+
+  /**
+   * Trains the network on randomly picked samples from specified training data, and validates it on all
+   * validation samples every 3000 samples. Each validation prints the number of samples presented, the mean
+   * training error since the last validation, the validation error and the validation accuracy.
+   * @param maps the bitmaps which are used as training inputs including targets
+   * @param val the bitmaps which are used for validation
+   * @param nPresentations the number of samples to present
+   * @param eta the learning rate, e.g. 0.01
+   */
+  public void train(ClassifiedBitmap[] maps, ClassifiedBitmap[] val, int nPresentations, double eta) {
+    train(Samples.of(maps), Samples.of(val), nPresentations, eta);
+  }
+
+  /**
+   * Trains the network as train(maps, val, nPresentations, eta), on samples of pixels
+   * @param samples the samples of pixels, e.g. the records of a mapped file
+   * @param val the samples of pixels which are used for validation
+   * @param nPresentations the number of samples to present
+   * @param eta the learning rate, e.g. 0.01
+   */
+  void train(Samples samples, Samples val, int nPresentations, double eta) {
+    ConvNet.Workspace ws=workspace();
+    double cumerror=0;
+    for (int p=1; p<=nPresentations; p++) {
+      int sample=rand.nextInt(samples.size());
+      cumerror+=net.train(samples.inputs[sample], targets[samples.classes[sample]], eta, ws);
+      if (p%3000==0 || p==nPresentations) {
+        double error=0;
+        int correct=0;
+        for (int i=0; i<val.size(); i++) {
+          double[] d=targets[val.classes[i]];
+          double[] o=net.feedforward(val.inputs[i], ws);
+          double rmse=0;
+          int index=0;
+          for (int k=0; k<o.length; k++) {
+            rmse+=(d[k]-o[k])*(d[k]-o[k]);
+            if (o[k]>o[index])
+              index=k;
+          }
+          error+=Math.sqrt(rmse/o.length);
+          if (index==val.classes[i])
+            correct++;
+        }
+        int interval=p%3000==0?3000:p%3000;
+        System.out.println(p + " " + cumerror/interval + " " + error/val.size() + " " + (double)correct/val.size());
+        cumerror=0;
+      }
+    }
+  }
+
+  /**
+   * Construct a convolutional network classifier for bitmaps of specified size, with two stages of 5x5
+   * convolutions (of 8 and 16 filters) and a dense hidden layer.
+   * @param nRows number of rows in the bitmap
+   * @param nCols number of columns in the bitmap
+   * @param nHidden number of nodes of the dense hidden layer (0 for none)
+   */
+  public CNNClassifier(int nRows, int nCols, int nHidden) {
+    this(nRows, nCols, new int[] {8, 16}, 5, nHidden, System.currentTimeMillis());
+  }
+
+  /**
+   * Construct a convolutional network classifier for bitmaps of specified size, which picks its initial
+   * weights and training samples by a seeded random number generator.
+   * @param nRows number of rows in the bitmap
+   * @param nCols number of columns in the bitmap
+   * @param filters the number of filters of each convolution stage
+   * @param kernel the size of the (square) filters, an odd number
+   * @param nHidden number of nodes of the dense hidden layer (0 for none)
+   * @param seed the seed of the random numbers
+   */
+  public CNNClassifier(int nRows, int nCols, int[] filters, int kernel, int nHidden, long seed) {
+    if (kernel<1 || kernel%2==0)
+      throw new IllegalArgumentException("Got filter size "+kernel+" (must be odd)");
+    rand=new Random(seed);
+    net=new ConvNet(nRows, nCols, filters, kernel, nHidden, getClassCount(), rand.nextLong());
+    targets=new double[getClassCount()][getClassCount()];
+    for (int c=0; c<getClassCount(); c++)
+      targets[c][c]=1;
+  }
+
+}
@@ -0,0 +1,122 @@
+package bitmap;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import machl.*;
+
+/**
+ * This program checks that classifying and training allocate nothing once warmed up: it counts the bytes that the
+ * thread allocates over many calls of each hot path with the thread allocation counters of the JVM. It prints the
+ * bytes per call of each path and exits with status 1 if any of them allocates.
+ */
+
+public class CheckAllocation {
+  private static com.sun.management.ThreadMXBean threads;
+  private static boolean failed=false;
+
+  /**
+   * A hot path, called once per sample
+   */
+  private interface Path {
+    void call(int sample);
+  }
+
+  /**
+   * Call a path for every sample a few times to warm it up, then count the bytes allocated by the same calls
+   * @param name the name of the path
+   * @param nSamples the number of samples
+   * @param path the path
+   */
+  private static void check(String name, int nSamples, Path path) {
+    for (int r=0; r<5; r++)
+      for (int i=0; i<nSamples; i++)
+        path.call(i);
+    long id=Thread.currentThread().getId();
+    long before=threads.getThreadAllocatedBytes(id);
+    for (int i=0; i<nSamples; i++)
+      path.call(i);
+    long bytes=threads.getThreadAllocatedBytes(id)-before;
+    System.out.println(name+": "+(double)bytes/nSamples+" bytes per call");
+    if (bytes>0)
+      failed=true;
+  }
+
+  public static void main(String[] args) {
+    if (args.length!=1) {
+      System.err.println("Usage: CheckAllocation <bitmap-file>");
+      System.exit(1);
+    }
+    java.lang.management.ThreadMXBean bean=ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)
+        || !((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported()) {
+      System.err.println("This JVM does not count the bytes allocated by a thread");
+      System.exit(2);
+    }
+    threads=(com.sun.management.ThreadMXBean)bean;
+    threads.setThreadAllocatedMemoryEnabled(true);
+    final ClassifiedBitmap[] bitmaps;
+    try {
+      bitmaps=LetterClassifier.loadLetters(args[0]);
+    } catch (IOException ex) {
+      System.err.println("Error loading bitmap file: "+ex.getMessage());
+      System.exit(2);
+      return;
+    }
+    final int n=bitmaps.length;
+    final double[] out=new double[LetterClassifier.getClassCount()];
+    final double[][] targets=new double[LetterClassifier.getClassCount()][LetterClassifier.getClassCount()];
+    for (int c=0; c<targets.length; c++)
+      targets[c][c]=1;
+
+    final NNClassifier nnc=new NNClassifier(32, 32, 32);
+    nnc.train(bitmaps, 2*n, 0.7);
+    check("NNClassifier.index", n, new Path() {
+      public void call(int i) {
+        nnc.index(bitmaps[i]);
+      }
+    });
+    check("NNClassifier.test(map, out)", n, new Path() {
+      public void call(int i) {
+        nnc.test(bitmaps[i], out);
+      }
+    });
+    nnc.setFloat(true);
+    check("NNClassifier.index, float", n, new Path() {
+      public void call(int i) {
+        nnc.index(bitmaps[i]);
+      }
+    });
+
+    final NN1 nn=new NN1(32*32, 32, LetterClassifier.getClassCount(), 1);
+    final NN1.Workspace ws=nn.newWorkspace();
+    check("NN1.train, dense", n, new Path() {
+      public void call(int i) {
+        nn.train(bitmaps[i], targets[bitmaps[i].getTarget()], 0.1, ws);
+      }
+    });
+    final SparseFeatures[] sparse=new SparseFeatures[n];
+    for (int i=0; i<n; i++)
+      sparse[i]=bitmaps[i].toSparseFeatures();
+    check("NN1.train, sparse", n, new Path() {
+      public void call(int i) {
+        nn.train(sparse[i], targets[bitmaps[i].getTarget()], 0.1, ws);
+      }
+    });
+
+    final ID3Classifier id3=new ID3Classifier(32, 32);
+    id3.train(bitmaps);
+    System.out.println();
+    check("ID3Classifier.index", n, new Path() {
+      public void call(int i) {
+        id3.index(bitmaps[i]);
+      }
+    });
+    check("ID3Classifier.test(map, out)", n, new Path() {
+      public void call(int i) {
+        id3.test(bitmaps[i], out);
+      }
+    });
+    System.exit(failed?1:0);
+  }
+
+}
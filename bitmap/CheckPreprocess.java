@@ -0,0 +1,131 @@
+package bitmap;
+
+import java.util.*;
+
+/**
+ * This program checks that Bitmap.preprocess, which computes the source locations once per row and column,
+ * agrees with the original per-pixel computation, on random bitmaps of strokes with fractional values.
+ * It prints the largest difference and exits with status 1 if it is over the tolerance.
+ */
+
+public class CheckPreprocess {
+
+  /**
+   * The original preprocessing of Bitmap, which computes the source location of every pixel
+   * @param map the values, row by row
+   * @param h the number of rows
+   * @param w the number of columns
+   * @return the preprocessed values
+   */
+  static float[] reference(float[] map, int h, int w) {
+    float m = 0, Mx = 0, My = 0, I = 0;
+    // calculate m, Mx, My, I
+    for (int i = 0; i < h; i++) {
+      for (int j = 0; j < w; j++) {
+        float v = map[i*w+j];
+        m += v;
+        My += i*v;
+        Mx += j*v;
+        I += (i*i+j*j)*v;
+      }
+    }
+
+    int Cx = (int)(Mx/m); // centroid, x
+    int Cy = (int)(My/m); // centroid, y
+    int shiftx = w/2 - Cx;
+    int shifty = h/2 - Cy;
+
+    //                   desired radius        / current radius of gyration
+    float scaleFactor = (Bitmap.NORMALIZED_RADIUS * h) /(float) Math.sqrt(I / m - Cx*Cx - Cy*Cy);
+
+    float[] map2=new float[h*w];
+    // bilinear scaling
+    for (int i = 0; i < h; i++) {
+      for (int j = 0; j < w; j++) {
+        // calculate location of source pixel, before scaling and shifting
+        int floor_x = (int)Math.floor((j-shiftx-Cx)/scaleFactor)+Cx;
+        int floor_y = (int)Math.floor((i-shifty-Cy)/scaleFactor)+Cy;
+
+        if (floor_x >= 0 && floor_x < w &&
+            floor_y >= 0 && floor_y < h) { // if source pixel is within boundary
+          int ceil_x = floor_x + 1;
+          if (ceil_x >= w) ceil_x = floor_x;
+          int ceil_y = floor_y + 1;
+          if (ceil_y >= h) ceil_y = floor_y;
+          float fraction_x = (j-shiftx-Cx)/scaleFactor+Cx - floor_x;
+          float fraction_y = (i-shifty-Cy)/scaleFactor+Cy - floor_y;
+          float one_minus_x = 1.0f - fraction_x;
+          float one_minus_y = 1.0f - fraction_y;
+
+          // the four surrounding source pixels
+          float c1 = map[floor_y*w+floor_x];
+          float c2 = map[floor_y*w+ceil_x];
+          float c3 = map[ceil_y*w+floor_x];
+          float c4 = map[ceil_y*w+ceil_x];
+
+          /// the bilinear average
+          map2[i*w+j] = one_minus_y*(one_minus_x*c1 + fraction_x*c2) +
+                       fraction_y*(one_minus_x*c3 + fraction_x*c4);
+        }
+
+      }
+    }
+    return map2;
+  }
+
+  /**
+   * Draw a random bitmap of a few strokes, with fractional values along some of them
+   */
+  static float[] randomBitmap(Random rand, int h, int w) {
+    float[] map=new float[h*w];
+    int nStrokes=1+rand.nextInt(4);
+    for (int s=0; s<nStrokes; s++) {
+      double x=rand.nextInt(w), y=rand.nextInt(h);
+      double angle=rand.nextDouble()*2*Math.PI;
+      float value=rand.nextBoolean()?1.0f:0.25f+0.75f*rand.nextFloat();
+      int length=2+rand.nextInt(Math.max(h, w));
+      for (int k=0; k<length; k++) {
+        int i=(int)y, j=(int)x;
+        if (i>=0 && i<h && j>=0 && j<w)
+          map[i*w+j]=Math.max(map[i*w+j], value);
+        x+=Math.cos(angle);
+        y+=Math.sin(angle);
+      }
+    }
+    return map;
+  }
+
+  public static void main(String[] args) {
+    int n=args.length>0?Integer.parseInt(args[0]):10000;
+    double tolerance=args.length>1?Double.parseDouble(args[1]):1e-6;
+    Random rand=new Random(1);
+    int h=32, w=32;
+    double maxDiff=0;
+    int nDiffer=0;
+    for (int b=0; b<n; b++) {
+      float[] values=randomBitmap(rand, h, w);
+      float[] expected=reference(values, h, w);
+      Bitmap bmap=new Bitmap(h, w, values);
+      bmap.preprocess();
+      float[] actual=bmap.getValues();
+      boolean differ=false;
+      for (int i=0; i<expected.length; i++) {
+        // a blank bitmap has no centroid, and both computations give the same NaN values
+        if (Float.isNaN(expected[i]) && Float.isNaN(actual[i]))
+          continue;
+        double diff=Math.abs(expected[i]-actual[i]);
+        if (!(diff<=tolerance))
+          differ=true;
+        if (!(diff<=maxDiff))
+          maxDiff=diff;
+      }
+      if (differ)
+        nDiffer++;
+    }
+    System.out.println("Bitmaps checked:      "+n);
+    System.out.println("Largest difference:   "+maxDiff);
+    System.out.println("Bitmaps over "+tolerance+": "+nDiffer);
+    System.exit(nDiffer==0?0:1);
+  }
+
+}
@@ -0,0 +1,96 @@
+package bitmap;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+/**
+ * <p>Writes checkpoints of a classifier while it is trained, so that training can resume after a crash.</p>
+ * The classifier is serialized into memory by the training thread, which takes a consistent copy in about the
+ * time it takes to copy its weights, and the copy is written to disk by a background thread. The checkpoint is
+ * written to a temporary file which then replaces the previous checkpoint in one step, so the file always holds
+ * a whole checkpoint. A checkpoint is an ordinary classifier file, which Classifier.load reads.
+ */
+
+class Checkpointer {
+  private String filename;
+  private int interval;
+  private ExecutorService thread;
+  private Future<?> pending;      // the write in progress, if any
+
+  /**
+   * Create a checkpointer
+   * @param filename the file of the checkpoints
+   * @param interval the number of samples presented between checkpoints
+   */
+  Checkpointer(String filename, int interval) {
+    if (interval<1)
+      throw new IllegalArgumentException("Got checkpoint interval "+interval);
+    this.filename=filename;
+    this.interval=interval;
+  }
+
+  /**
+   * Determine the number of samples presented between checkpoints
+   * @return the interval
+   */
+  int getInterval() {
+    return interval;
+  }
+
+  /**
+   * Take a checkpoint of a classifier and start writing it, after the previous checkpoint is written
+   * @param classifier the classifier, which is not changed until this returns
+   */
+  void write(Classifier classifier) {
+    finish();
+    final byte[] data;
+    try {
+      ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+      ObjectOutputStream out=new ObjectOutputStream(bytes);
+      out.writeObject(classifier);
+      out.close();
+      data=bytes.toByteArray();
+    } catch (IOException ex) {
+      System.err.println("Failed to serialize checkpoint: "+ex.getMessage());
+      return;
+    }
+    if (thread==null) {
+      thread=Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t=new Thread(r, "checkpoint writer");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    pending=thread.submit(new Callable<Object>() {
+      public Object call() throws IOException {
+        Path file=Paths.get(filename).toAbsolutePath();
+        Path temp=file.resolveSibling(file.getFileName()+".tmp");
+        try (FileOutputStream out=new FileOutputStream(temp.toFile())) {
+          out.write(data);
+          out.getFD().sync();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Wait until the last checkpoint is written
+   */
+  void finish() {
+    if (pending==null)
+      return;
+    try {
+      pending.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException ex) {
+      System.err.println("Failed to write checkpoint: "+ex.getCause().getMessage());
+    }
+    pending=null;
+  }
+}
@@ -23,6 +23,19 @@ public class ClassifiedBitmap extends Bitmap {
     this.targetClass=targetClass;
   }
 
+  /**
+   * Construct the instance from pixel values in row-major order and attach a classification to it.
+   * The bitmap is not preprocessed (see Bitmap).
+   * @param nRows number of rows
+   * @param nCols number of columns
+   * @param values the values, row by row
+   * @param targetClass the classification of the bitmap
+   */
+  ClassifiedBitmap(int nRows, int nCols, float[] values, int targetClass) {
+    super(nRows, nCols, values);
+    this.targetClass=targetClass;
+  }
+
   /**
    * <p>Construct the instance from a String specification.</p>
    * Format:<p>nRows nCols value_row_1_col_1 value_row_1_col_2 ... value_row_nRows_col_nCols classification</p>
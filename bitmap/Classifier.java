@@ -10,6 +10,7 @@ import java.net.*;
  */
 
 public class Classifier implements Serializable {
+  private static final long serialVersionUID = 5384136137194306422L; // keep models saved by earlier versions loadable
   /**
    * Identifies the classifier, e.g. by the name of the author/contender
    * @return the identifier
@@ -35,6 +36,20 @@ public class Classifier implements Serializable {
     return null;
   }
 
+  /**
+   * Classifies the bitmap into an array of the caller, which classifiers may fill without allocating anything
+   * @param map the bitmap to classify
+   * @param out receives the probabilities of all the classes
+   * @return out, or null if the classifier gives no probabilities
+   */
+  public double[] test(Bitmap map, double[] out) {
+    double[] result=test(map);
+    if (result==null)
+      return null;
+    System.arraycopy(result, 0, out, 0, result.length);
+    return out;
+  }
+
   public int index(Bitmap map) {
     double[] out=test(map);
     if (out!=null) {
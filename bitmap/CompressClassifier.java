@@ -0,0 +1,86 @@
+package bitmap;
+
+import java.io.*;
+import java.util.*;
+import machl.CompressedNN1;
+
+/**
+ * This program compresses a saved neural network classifier, e.g. final.dat: it prunes the small weights of the
+ * hidden layer and optionally factorizes it into a low-rank product (see CompressedNN1), fine-tunes the remaining
+ * weights briefly on the training bitmaps, and saves it in another file. Given a file of test bitmaps, it reports
+ * the accuracy of the network before and after compression.
+ */
+
+public class CompressClassifier {
+
+  public CompressClassifier(String[] args, double density, int rank, int nFineTune, double eta, String testFile) {
+    Classifier c=null;
+    try {
+      c=Classifier.load(args[0]);
+    } catch (IOException ex) {
+      System.err.println("Load of classifier failed: "+ex.getMessage());
+      System.exit(2);
+    } catch (ClassNotFoundException ex) {
+      System.err.println("Loaded classifier does not match available classes: "+ex.getMessage());
+      System.exit(3);
+    }
+    if (!(c instanceof NNClassifier)) {
+      System.err.println("Only neural network classifiers can be compressed, not "+c.getName());
+      System.exit(1);
+    }
+    NNClassifier nnc=(NNClassifier)c;
+    if (nnc.isQuantized() || nnc.isCompressed()) {
+      System.err.println("The classifier is already quantized or compressed");
+      System.exit(1);
+    }
+    ClassifiedBitmap[] bitmaps;
+    ClassifiedBitmap[] test=null;
+    try {
+      bitmaps=LetterClassifier.loadLetters(args[1]);
+      if (testFile!=null)
+        test=LetterClassifier.loadLetters(testFile);
+    } catch (IOException ex) {
+      System.err.println("Error loading bitmap file: "+ex.getMessage());
+      System.exit(2);
+      return;
+    }
+
+    double before=test==null?0:EvalClassifier.accuracy(nnc, test);
+    CompressedNN1 compressed=nnc.compress(density, rank);
+    double pruned=test==null?0:EvalClassifier.accuracy(nnc, test);
+    if (nFineTune>0 && bitmaps.length>0)
+      nnc.train(bitmaps, nFineTune, eta);
+    System.out.println("Weights kept:                 "+compressed.getNonZeroCount());
+    System.out.println("Multiply-adds per bitmap:     "+compressed.getDenseMultiplyAdds()+" before, "+compressed.getMultiplyAdds()+" after");
+    if (test!=null) {
+      double after=EvalClassifier.accuracy(nnc, test);
+      System.out.println("Accuracy before compression:  "+before);
+      System.out.println("Accuracy before fine-tuning:  "+pruned);
+      System.out.println("Accuracy after fine-tuning:   "+after);
+      System.out.println("Accuracy loss:                "+(before-after));
+    }
+    try {
+      Classifier.save(nnc, args[2]);
+    } catch (IOException ex) {
+      System.err.println("Failed to serialize and save file: "+ex.getMessage());
+      System.exit(2);
+    }
+  }
+
+  public static void main(String[] args) {
+    List<String> list=new ArrayList<String>(Arrays.asList(args));
+    double density=Double.parseDouble(TrainClassifier.option(list, "-density", "0.1"));
+    int rank=Integer.parseInt(TrainClassifier.option(list, "-rank", "0"));
+    int nFineTune=Integer.parseInt(TrainClassifier.option(list, "-finetune", "10000"));
+    double eta=Double.parseDouble(TrainClassifier.option(list, "-eta", "0.1"));
+    String testFile=TrainClassifier.option(list, "-test", null);
+    args=list.toArray(new String[list.size()]);
+    if (args.length!=3 || density<=0 || density>1 || rank<0 || nFineTune<0) {
+      System.err.println("Usage: CompressClassifier [-density fraction] [-rank r] [-finetune n] [-eta e] [-test <bitmap-file>] <classifier-file> <training-bitmap-file> <output-file>");
+      System.exit(1);
+    }
+    new CompressClassifier(args, density, rank, nFineTune, eta, testFile);
+    System.out.println("Done.");
+  }
+
+}
@@ -0,0 +1,50 @@
+package bitmap;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * This program converts a saved neural network classifier, e.g. final.dat, to compute in float or in double,
+ * and saves it in another file.
+ */
+
+public class ConvertClassifier {
+
+  public ConvertClassifier(String[] args, String precision) {
+    Classifier c=null;
+    try {
+      c=Classifier.load(args[0]);
+    } catch (IOException ex) {
+      System.err.println("Load of classifier failed: "+ex.getMessage());
+      System.exit(2);
+    } catch (ClassNotFoundException ex) {
+      System.err.println("Loaded classifier does not match available classes: "+ex.getMessage());
+      System.exit(3);
+    }
+    if (!(c instanceof NNClassifier)) {
+      System.err.println("Only neural network classifiers can be converted, not "+c.getName());
+      System.exit(1);
+    }
+    NNClassifier nnc=(NNClassifier)c;
+    nnc.setFloat(precision.equals("float"));
+    try {
+      Classifier.save(nnc, args[1]);
+    } catch (IOException ex) {
+      System.err.println("Failed to serialize and save file: "+ex.getMessage());
+      System.exit(2);
+    }
+  }
+
+  public static void main(String[] args) {
+    List<String> list=new ArrayList<String>(Arrays.asList(args));
+    String precision=TrainClassifier.option(list, "-precision", "float");
+    args=list.toArray(new String[list.size()]);
+    if (args.length!=2 || !(precision.equals("float") || precision.equals("double"))) {
+      System.err.println("Usage: ConvertClassifier [-precision float|double] <classifier-file> <output-file>");
+      System.exit(1);
+    }
+    new ConvertClassifier(args, precision);
+    System.out.println("Done.");
+  }
+
+}
@@ -25,8 +25,7 @@ public class EvalClassifier {
     if (c!=null) {
       // load data
       try {
-        ClassifiedBitmap[] bitmaps=LetterClassifier.loadLetters(args[1]);
-        run(c, bitmaps);
+        run(c, Samples.load(args[1]));
       } catch (IOException ex) {
         System.err.println("Error loading bitmap file: "+ex.getMessage());
       }
@@ -34,16 +33,54 @@ public class EvalClassifier {
   }
 
   public static void run(Classifier c, ClassifiedBitmap[] bitmaps) {
+    run(c, Samples.of(bitmaps));
+  }
+
+  /**
+   * Test a classifier on samples of pixels and print the result of each sample. The records of a mapped file
+   * are copied in turn into one bitmap.
+   * @param c the classifier
+   * @param samples the samples of pixels
+   */
+  static void run(Classifier c, Samples samples) {
     // test it using available data
     System.out.println("Evaluating classifier "+c.getName());
     System.out.println("Sample\tTarget\tActual\tCorrect");
-    for (int i=0; i<bitmaps.length; i++) {
-      int actual=c.index((Bitmap)bitmaps[i]);
-      int target=bitmaps[i].getTarget();
+    Bitmap bmap=samples.newBitmap();
+    for (int i=0; i<samples.size(); i++) {
+      int actual=c.index(samples.getBitmap(i, bmap));
+      int target=samples.classes[i];
       System.out.println(i+" \t"+c.getLabel(target)+" \t"+c.getLabel(actual)+" \t"+(target==actual?"YES":"NO"));
     }
   }
 
+  /**
+   * Determine the fraction of bitmaps that a classifier classifies correctly
+   * @param c the classifier
+   * @param bitmaps the classified bitmaps
+   * @return the fraction correct (0..1)
+   */
+  public static double accuracy(Classifier c, ClassifiedBitmap[] bitmaps) {
+    return accuracy(c, Samples.of(bitmaps));
+  }
+
+  /**
+   * Determine the fraction of samples of pixels that a classifier classifies correctly. The records of a mapped
+   * file are copied in turn into one bitmap.
+   * @param c the classifier
+   * @param samples the samples of pixels
+   * @return the fraction correct (0..1)
+   */
+  static double accuracy(Classifier c, Samples samples) {
+    Bitmap bmap=samples.newBitmap();
+    int correct=0;
+    for (int i=0; i<samples.size(); i++) {
+      if (c.index(samples.getBitmap(i, bmap))==samples.classes[i])
+        correct++;
+    }
+    return samples.size()>0?(double)correct/samples.size():0;
+  }
+
   public static void main(String[] args) {
     if (args.length!=2) {
       System.err.println("Usage: EvalClassifier <classifier-file> <bitmap-file>");
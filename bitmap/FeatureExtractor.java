@@ -0,0 +1,62 @@
+package bitmap;
+
+import java.io.Serializable;
+import machl.FeatureView;
+
+/**
+ * <p>Turns a bitmap into the features that a classifier is trained and tested on.
+ * A classifier keeps its extractor, so that it applies the same one when it is loaded elsewhere.</p>
+ */
+
+public abstract class FeatureExtractor implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Determine the number of features produced for each bitmap
+   * @return the number of features
+   */
+  public abstract int getFeatureCount();
+
+  /**
+   * Identifies a feature, e.g. to label the nodes of a decision tree
+   * @param index the index of the feature (0..getFeatureCount-1)
+   * @return the name of the feature
+   */
+  public abstract String getLabel(int index);
+
+  /**
+   * Computes the features of a (preprocessed) bitmap
+   * @param map the bitmap
+   * @return the features
+   */
+  public abstract FeatureView extract(Bitmap map);
+
+  /**
+   * Computes the features of many bitmaps
+   * @param maps the bitmaps
+   * @return the features of each bitmap
+   */
+  public FeatureView[] extractAll(Bitmap[] maps) {
+    FeatureView[] features=new FeatureView[maps.length];
+    for (int i=0; i<maps.length; i++)
+      features[i]=extract(maps[i]);
+    return features;
+  }
+
+  /**
+   * Create an extractor by name: "pixels", "moments" or "projections"
+   * @param name the name of the extractor
+   * @param nRows number of rows in the bitmaps
+   * @param nCols number of columns in the bitmaps
+   * @return the extractor
+   */
+  public static FeatureExtractor forName(String name, int nRows, int nCols) {
+    if (name.equalsIgnoreCase("pixels"))
+      return new PixelFeatures(nRows, nCols);
+    if (name.equalsIgnoreCase("moments"))
+      return new MomentFeatures();
+    if (name.equalsIgnoreCase("projections"))
+      return new ProjectionFeatures(nRows, nCols);
+    throw new IllegalArgumentException("Unknown features: "+name+" (use pixels, moments or projections)");
+  }
+}
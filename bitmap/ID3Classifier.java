@@ -10,13 +10,12 @@ import machl.*;
  */
 
 public class ID3Classifier extends LetterClassifier {
+  private static final long serialVersionUID = 8388747063978664736L; // keep models saved by earlier versions loadable
   private static String name="ID3 Classifier 1";
-  private BinID3 id3=null;
   private BinTree tree=null;
   private String[] labels=null;
-  private boolean[][] features=null;
-  private String[] targetValues=null;
   private String[] classValues=null;
+  private FeatureExtractor extractor=null; // the features tested by the tree (null in models saved before extractors: pixels)
 
   /**
    * Identifies the classifier, e.g. by the name of the author/contender
@@ -32,30 +31,53 @@ public class ID3Classifier extends LetterClassifier {
    * @return the probabilities of all the classes (should add up to 1).
    */
   public double[] test(Bitmap map) {
+    if (tree!=null)
+      return test(map, new double[getClassCount()]);
+    else
+      return null;
+  }
+
+  /**
+   * Classifies the bitmap into an array of the caller, without allocating anything
+   * @param map the bitmap to classify
+   * @param out receives the probabilities of all the classes
+   * @return out, or null if the tree has not been built
+   */
+  public double[] test(Bitmap map, double[] out) {
     if (tree!=null) {
-      double[] out=new double[getClassCount()];
-      String actual=tree.getClassification(labels, map.toBooleanArray());
-      int index=0;
+      String actual=tree.getClassification(labels, extractor==null?map:extractor.extract(map));
       for (int i=0; i<LetterClassifier.getClassCount(); i++)
-        if (getLabel(i).compareToIgnoreCase(actual)==0)
-          out[i]=1;
+        out[i]=getLabel(i).compareToIgnoreCase(actual)==0?1:0;
       return out;
     } else
       return null;
   }
 
+  public int index(Bitmap map) {
+    if (tree!=null) {
+      String actual=tree.getClassification(labels, extractor==null?map:extractor.extract(map));
+      for (int i=0; i<LetterClassifier.getClassCount(); i++)
+        if (getLabel(i).compareToIgnoreCase(actual)==0)
+          return i;
+      return 0; // as Classifier.index for all probabilities 0
+    } else
+      return -1;
+  }
+
   /**
    * Trains the ID3 classifier on provided samples.
    * @param maps the bitmaps which are used as training inputs
    */
   public void train(ClassifiedBitmap[] maps) {
-    features=new boolean[maps.length][];
-    targetValues=new String[maps.length];
+    PackedBitmap[] samples=new PackedBitmap[maps.length];
+    String[] targetValues=new String[maps.length];
     for (int p=0; p<maps.length; p++) {
-      features[p]=((Bitmap)maps[p]).toBooleanArray();
+      FeatureView view=extractor==null?maps[p]:extractor.extract(maps[p]);
+      samples[p]=view instanceof Bitmap?((Bitmap)view).toPackedBitmap():new PackedBitmap(view);
       targetValues[p]=getLabel(maps[p].getTarget());
     }
-    id3=new machl.BinID3(labels, features, targetValues, classValues);
+    // only the tree is kept, so that the training samples are not saved with the classifier
+    BinID3 id3=new BinID3(labels, samples, targetValues, classValues);
     tree=id3.induce();
   }
 
@@ -65,10 +87,18 @@ public class ID3Classifier extends LetterClassifier {
    * @param nCols number of columns in the bitmap
    */
   public ID3Classifier(int nRows, int nCols) {
-    labels=new String[nRows*nCols];
-    for (int r=0; r<nRows; r++)
-      for (int c=0; c<nCols; c++)
-        labels[r*nCols+c]=new String("R"+r+"C"+c);
+    this(new PixelFeatures(nRows, nCols));
+  }
+
+  /**
+   * Construct the ID3 classifier on the specified features of bitmaps (a feature is true if it is positive).
+   * @param features the features of the bitmaps that the tree tests
+   */
+  public ID3Classifier(FeatureExtractor features) {
+    extractor=features;
+    labels=new String[features.getFeatureCount()];
+    for (int f=0; f<labels.length; f++)
+      labels[f]=features.getLabel(f);
     classValues=new String[getClassCount()];
     for (int c=0; c<getClassCount(); c++)
       classValues[c]=getLabel(c);
@@ -10,9 +10,15 @@ import java.util.*;
  */
 
 public class LetterClassifier extends Classifier {
+  private static final long serialVersionUID = 2173073749569641725L; // keep models saved by earlier versions loadable
 
   private static String name="Letter Classifier";
   private static int nClasses=('Z'-'A')+1;
+  private static final String[] labels=new String[nClasses]; // the labels of the classes, made once
+  static {
+    for (int i=0; i<nClasses; i++)
+      labels[i]=String.valueOf((char)('A'+i));
+  }
 
   /**
    * Identifies the classifier, e.g. by the name of the author/contender
@@ -36,64 +42,38 @@ public class LetterClassifier extends Classifier {
    * @return the label/name of the specified class
    */
   public String getLabel(int index) {
+    if (index>=0 && index<nClasses)
+      return labels[index];
     Character letter=new Character((char)('A'+index));
     return letter.toString();
   }
 
   /**
    * Helper method for loading a text-file with classified bitmaps (each representing a letter).
-   * It ignores rows with format problems.
+   * It ignores rows with format problems. The file may also be a binary BitmapFile.
+   * Text-files are preprocessed once and then read from the BitmapCache.
    * @param filename the filename of the text-file that holds the classified bitmaps
    * @return an array of classified bitmaps
    * @throws IOException if the file operation fails
    */
   public static ClassifiedBitmap[] loadLetters(String filename) throws IOException {
-    Vector<ClassifiedBitmap> bmaps=new Vector<ClassifiedBitmap>();
-    BufferedReader reader=new BufferedReader(new FileReader(filename));
-    String line=reader.readLine();
-    while (line!=null) {
-      ClassifiedBitmap bmap=null;
-      try {
-        bmap=new ClassifiedBitmap(line);
-        bmaps.add(bmap);
-      } catch (RuntimeException ex) {
-        ; // the line does not conform to the Bitmap format or does not specify the target class correctly
-      }
-      line=reader.readLine();
-    }
-    ClassifiedBitmap[] bitmaps=new ClassifiedBitmap[bmaps.size()];
-    Iterator<ClassifiedBitmap> iter=bmaps.iterator();
-    for (int i=0; iter.hasNext(); i++)
-      bitmaps[i]=iter.next();
-    return bitmaps;
+    if (BitmapFile.isBitmapFile(filename))
+      return BitmapFile.open(filename).getClassifiedBitmaps();
+    return BitmapCache.loadClassified(filename);
   }
 
   /**
    * Helper method for loading a text-file with unclassified bitmaps (each representing a letter).
-   * It ignores rows with format problems.
+   * It ignores rows with format problems. The file may also be a binary BitmapFile.
+   * Text-files are preprocessed once and then read from the BitmapCache.
    * @param filename the filename of the text-file that holds the classified bitmaps
    * @return an array of classified bitmaps
    * @throws IOException if the file operation fails
    */
   public static Bitmap[] loadUnclassifiedLetters(String filename) throws IOException {
-    Vector<Bitmap> bmaps=new Vector<Bitmap>();
-    BufferedReader reader=new BufferedReader(new FileReader(filename));
-    String line=reader.readLine();
-    while (line!=null) {
-      Bitmap bmap=null;
-      try {
-        bmap=new Bitmap(line);
-        bmaps.add(bmap);
-      } catch (RuntimeException ex) {
-        ; // the line does not conform to the Bitmap format
-      }
-      line=reader.readLine();
-    }
-    Bitmap[] bitmaps=new Bitmap[bmaps.size()];
-    Iterator<Bitmap> iter=bmaps.iterator();
-    for (int i=0; iter.hasNext(); i++)
-      bitmaps[i]=iter.next();
-    return bitmaps;
+    if (BitmapFile.isBitmapFile(filename))
+      return BitmapFile.open(filename).getBitmaps();
+    return BitmapCache.loadUnclassified(filename);
   }
 
 }
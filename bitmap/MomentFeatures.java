@@ -0,0 +1,33 @@
+package bitmap;
+
+import machl.FeatureVector;
+import machl.FeatureView;
+
+/**
+ * <p>Uses the 7 Hu Moment Invariants of the bitmap as features. The invariants span many orders of
+ * magnitude, so each is presented as sign(h)*log10(|h|) (0 if h is 0 or the bitmap is blank).</p>
+ */
+
+public class MomentFeatures extends FeatureExtractor {
+  private static final long serialVersionUID = 1L;
+
+  public int getFeatureCount() {
+    return 7;
+  }
+
+  public String getLabel(int index) {
+    return "H"+(index+1);
+  }
+
+  public FeatureView extract(Bitmap map) {
+    double[] moment=map.huMoments();
+    for (int i=0; i<moment.length; i++) {
+      double h=moment[i];
+      if (h==0 || Double.isNaN(h))
+        moment[i]=0;
+      else
+        moment[i]=Math.signum(h)*Math.log10(Math.abs(h));
+    }
+    return new FeatureVector(moment);
+  }
+}
@@ -1,6 +1,7 @@
 package bitmap;
 
-import java.util.Random;
+import java.util.*;
+import java.util.concurrent.*;
 import machl.*;
 
 /**
@@ -10,11 +11,23 @@ import machl.*;
  */
 
 public class NNClassifier extends LetterClassifier {
+  private static final long serialVersionUID = 3875850105830381841L; // keep models saved by earlier versions loadable
 
   private static String name="NN Classifier 1";
-  private NN1 nn=null;
+  // inputs with fewer non-zero features than this fraction are presented to the network as SparseFeatures
+  private static final double SPARSE_DENSITY=0.5;
+  private NN1 nn=null; // the network in double (null while floatNN is used)
   private Random rand;
   private double[][] targets=null; // target vectors;
+  private FeatureExtractor features=null; // the input of the network (null in models saved before extractors: pixels)
+  private FloatNN1 floatNN=null; // the network in float, instead of nn (null in models saved before: double)
+  private QuantizedNN1 int8NN=null; // the network quantized to 8 bits, instead of nn (null unless quantized)
+  private CompressedNN1 compressedNN=null; // the network pruned and factorized, instead of nn (null unless compressed)
+  private int validationInterval=0; // the samples between validation passes (0 in models saved before: 3000)
+  private int patience=0; // the validation passes without improvement before training stops (0: never stops)
+  private int presented=0; // the number of samples presented in training so far, over all calls
+  private transient Checkpointer checkpointer; // writes checkpoints while training (null: none)
+  private transient volatile ThreadLocal<Workspace> workspaces; // the workspace of each testing thread
 
   /**
    * Identifies the classifier, e.g. by the name of the author/contender, or by whatever you want to
@@ -31,10 +44,266 @@ public class NNClassifier extends LetterClassifier {
    * @return the probabilities of all the classes (should add up to 1).
    */
   public double[] test(Bitmap map) {
-    double[] out=nn.feedforward(map.toDoubleArray());
+    return output(map).clone(); // the workspace is reused by the next call
+  }
+
+  /**
+   * Classifies the bitmap into an array of the caller
+   * @param map the bitmap to classify
+   * @param out receives the probabilities of all the classes
+   * @return out
+   */
+  public double[] test(Bitmap map, double[] out) {
+    double[] o=output(map);
+    System.arraycopy(o, 0, out, 0, o.length);
     return out;
   }
 
+  public int index(Bitmap map) {
+    double[] out=output(map);
+    int best=0;
+    for (int i=0; i<out.length; i++) {
+      if (out[i]>out[best])
+        best=i;
+    }
+    return best;
+  }
+
+  /**
+   * Compute the output of the network for a bitmap in the workspace of the calling thread. Once the thread
+   * has a workspace, nothing is allocated (unless the feature extractor allocates the features).
+   * @param map the bitmap
+   * @return the output values, held by the workspace
+   */
+  private double[] output(Bitmap map) {
+    Workspace ws=workspace();
+    FeatureView x=features==null?map:features.extract(map);
+    // mostly blank inputs are made sparse, so that the network skips the features that are 0
+    ws.sparse.assign(x);
+    if (ws.sparse.getNonZeroCount()<SPARSE_DENSITY*x.size())
+      x=ws.sparse;
+    if (int8NN!=null)
+      return int8NN.feedforward(x, ws.int8NN);
+    if (compressedNN!=null)
+      return compressedNN.feedforward(x, ws.compressedNN);
+    if (floatNN!=null)
+      return floatNN.feedforward(x, ws.floatNN);
+    return nn.feedforward(x, ws.nn);
+  }
+
+  /**
+   * Determine the workspace for the calling thread, so that test can be called by several threads at once.
+   * Threads that first call test at the same time may each create the ThreadLocal, which only costs them
+   * a workspace more.
+   * @return the workspace
+   */
+  private Workspace workspace() {
+    ThreadLocal<Workspace> local=workspaces;
+    if (local==null)
+      workspaces=local=new ThreadLocal<Workspace>();
+    Workspace ws=local.get();
+    if (ws==null) {
+      ws=new Workspace();
+      local.set(ws);
+    }
+    if (int8NN!=null) {
+      if (ws.int8NN==null)
+        ws.int8NN=int8NN.newWorkspace();
+    } else if (compressedNN!=null) {
+      if (ws.compressedNN==null)
+        ws.compressedNN=compressedNN.newWorkspace();
+    } else if (floatNN!=null && ws.floatNN==null)
+      ws.floatNN=floatNN.newWorkspace();
+    else if (floatNN==null && ws.nn==null)
+      ws.nn=nn.newWorkspace();
+    return ws;
+  }
+
+  /**
+   * The buffers of a testing thread: the sparse features of the bitmap and the workspace of the network.
+   */
+  private static class Workspace {
+    SparseFeatures sparse=new SparseFeatures(0, new int[0], new double[0]);
+    NN1.Workspace nn;
+    FloatNN1.Workspace floatNN;
+    QuantizedNN1.Workspace int8NN;
+    CompressedNN1.Workspace compressedNN;
+  }
+
+  /**
+   * Choose whether the network computes in float, with its weights in contiguous float arrays, or in double.
+   * Switching to float rounds the weights to floats and drops the double weights, which halves the size of the
+   * network; switching back keeps the rounded weights. Only training one sample at a time with one thread is
+   * done in float.
+   * @param useFloat true for float, false for double
+   */
+  public void setFloat(boolean useFloat) {
+    requireUncompressed();
+    if (useFloat && floatNN==null) {
+      floatNN=new FloatNN1(nn);
+      nn=null;
+    } else if (!useFloat && floatNN!=null) {
+      nn=floatNN.toNN1();
+      floatNN=null;
+    }
+  }
+
+  /**
+   * Determine whether the network computes in float
+   * @return true for float, false for double
+   */
+  public boolean isFloat() {
+    return floatNN!=null;
+  }
+
+  /**
+   * Choose how the weights of the network change by their gradients in training, e.g. with momentum or Adam.
+   * The optimizer keeps state of the size of the network, which is saved with the classifier until it is set
+   * to null again. Only networks in double are trained with an optimizer, and not by Hogwild training with
+   * several threads, whose threads change the weights without locking.
+   * @param optimizer the optimizer, or null to change each weight by its gradient times the learning rate
+   */
+  public void setOptimizer(Optimizer optimizer) {
+    if (optimizer!=null)
+      requireDouble();
+    if (nn!=null)
+      nn.setOptimizer(optimizer);
+  }
+
+  /**
+   * Choose whether the outputs of the network are normalized by softmax and trained on cross-entropy error,
+   * instead of logistic outputs trained on squared error. With softmax the outputs add up to 1.
+   * @param softmax true for softmax outputs
+   */
+  public void setSoftmax(boolean softmax) {
+    requireUncompressed();
+    if (floatNN!=null) {
+      NN1 net=floatNN.toNN1();
+      net.setSoftmax(softmax);
+      floatNN=new FloatNN1(net);
+    } else
+      nn.setSoftmax(softmax);
+  }
+
+  /**
+   * Choose how the logistic output function of the network is computed: exactly, or by an approximation which
+   * avoids Math.exp (see Activation). The network keeps the choice, so it is tested with the function it was
+   * trained with.
+   * @param activation the function
+   */
+  public void setActivation(Activation activation) {
+    requireUncompressed();
+    if (floatNN!=null) {
+      NN1 net=floatNN.toNN1();
+      net.setActivation(activation);
+      floatNN=new FloatNN1(net);
+    } else
+      nn.setActivation(activation);
+  }
+
+  /**
+   * Quantize the network to 8-bit weights, which are a quarter of the size of float weights and are multiplied
+   * with the inputs as integers. The scales of the inputs and hidden values are calibrated on a sample of the
+   * bitmaps. The float or double weights are dropped, so a quantized network is no longer trained or converted.
+   * @param sample bitmaps like those the classifier will be tested on
+   */
+  public void quantize(Bitmap[] sample) {
+    requireUncompressed();
+    NN1 net=floatNN!=null?floatNN.toNN1():nn;
+    int8NN=new QuantizedNN1(net, featuresAll(sample));
+    nn=null;
+    floatNN=null;
+  }
+
+  /**
+   * Determine whether the network is quantized to 8-bit weights
+   * @return true if quantized
+   */
+  public boolean isQuantized() {
+    return int8NN!=null;
+  }
+
+  /**
+   * Compress the network: optionally factorize the weights of the hidden layer into a low-rank product, and keep
+   * only a fraction of the weights of the input side (see CompressedNN1). The network can then be fine-tuned with
+   * train(maps, nPresentations, eta), one sample at a time, but no longer converted or quantized.
+   * @param density the fraction of the input side weights that is kept (1 keeps all)
+   * @param rank the rank of the factorization (0 for none)
+   * @return the compressed network, e.g. to report its size
+   */
+  public CompressedNN1 compress(double density, int rank) {
+    requireUncompressed();
+    NN1 net=floatNN!=null?floatNN.toNN1():nn;
+    compressedNN=new CompressedNN1(net, density, rank);
+    nn=null;
+    floatNN=null;
+    return compressedNN;
+  }
+
+  /**
+   * Determine whether the network is compressed
+   * @return true if compressed
+   */
+  public boolean isCompressed() {
+    return compressedNN!=null;
+  }
+
+  /**
+   * Determine the features of all bitmaps once, so that they are not extracted per presentation
+   * @param maps the bitmaps
+   * @return the features of each bitmap
+   */
+  private FeatureView[] featuresAll(Bitmap[] maps) {
+    FeatureView[] inputs=new FeatureView[maps.length];
+    for (int i=0; i<maps.length; i++)
+      inputs[i]=sparse(features==null?maps[i]:features.extract(maps[i]));
+    return inputs;
+  }
+
+  /**
+   * Determine the features that this network is presented with for samples of pixels
+   * @param pixels the samples
+   * @return the samples of features
+   */
+  Samples featuresAll(Samples pixels) {
+    return featuresOf(features, pixels);
+  }
+
+  /**
+   * Determine the features that a network with the specified extractor is presented with for samples of pixels,
+   * e.g. once for several classifiers that are trained at the same time. Mostly blank inputs are made sparse, so
+   * that the network skips the features that are 0. The pixels of the records of a mapped file are read where
+   * they are mapped, and other features are extracted from the records in turn through one bitmap.
+   * @param features the feature extractor (null: the pixels)
+   * @param pixels the samples
+   * @return the samples of features, with the classes of pixels
+   */
+  static Samples featuresOf(FeatureExtractor features, Samples pixels) {
+    if (features instanceof PixelFeatures)
+      features=null;
+    Bitmap bmap=pixels.newBitmap();
+    FeatureView[] inputs=new FeatureView[pixels.size()];
+    for (int i=0; i<inputs.length; i++)
+      inputs[i]=sparse(features==null?pixels.inputs[i]:features.extract(pixels.getBitmap(i, bmap)));
+    return new Samples(inputs, pixels.classes);
+  }
+
+  /**
+   * Determine the features of classified bitmaps, for the training methods that are passed bitmaps
+   * @param maps the bitmaps, or null
+   * @return the samples of features, or null
+   */
+  private Samples samplesAll(ClassifiedBitmap[] maps) {
+    return maps==null?null:featuresAll(Samples.of(maps));
+  }
+
+  private static FeatureView sparse(FeatureView x) {
+    SparseFeatures s=x instanceof Bitmap?((Bitmap)x).toSparseFeatures():new SparseFeatures(x);
+    if (s.getNonZeroCount()<SPARSE_DENSITY*x.size())
+      return s;
+    return x;
+  }
+
   /**
    * Trains the neural network classifier on randomly picked samples from specified training data.
    * @param maps the bitmaps which are used as training inputs including targets
@@ -42,34 +311,723 @@ public class NNClassifier extends LetterClassifier {
    * @param eta the learning rate
    */
   public void train(ClassifiedBitmap[] maps, int nPresentations, double eta) {
+    train(samplesAll(maps), nPresentations, eta);
+  }
+
+  /**
+   * Trains the neural network classifier as train(maps, nPresentations, eta), on samples of features
+   * @param samples the samples of features (see featuresAll)
+   * @param nPresentations the number of samples to present
+   * @param eta the learning rate
+   */
+  void train(Samples samples, int nPresentations, double eta) {
+    requireTrainable();
+    FeatureView[] inputs=samples.inputs;
     for (int p=0; p<nPresentations; p++) {
-      int sample=rand.nextInt(maps.length);
-      nn.train(((Bitmap)maps[sample]).toDoubleArray(), targets[maps[sample].getTarget()], eta);
+      int sample=rand.nextInt(inputs.length);
+      if (compressedNN!=null)
+        compressedNN.train(inputs[sample], targets[samples.classes[sample]], eta);
+      else if (floatNN!=null)
+        floatNN.train(inputs[sample], targets[samples.classes[sample]], eta);
+      else
+        nn.train(inputs[sample], targets[samples.classes[sample]], eta);
+      presented(1);
     }
   }
 
   /**
-   * Trains the neural network classifier on randomly picked samples from specified training data.
+   * Trains the neural network classifier on randomly picked samples from specified training data, and
+   * validates the network on all validation samples at every validation interval (see setValidation).
+   * Each validation pass runs on a snapshot of the weights in a background thread while training continues.
+   * Training stops early when the network has not improved for the patience number of passes, and the
+   * network ends up with the weights that were best on the validation samples.
    * @param maps the bitmaps which are used as training inputs including targets
+   * @param val the bitmaps which are used for validation
    * @param nPresentations the number of samples to present
    * @param eta the learning rate
    */
   public void train(ClassifiedBitmap[] maps, ClassifiedBitmap[] val, int nPresentations, double eta) {
+    train(samplesAll(maps), samplesAll(val), nPresentations, eta);
+  }
+
+  /**
+   * Trains the neural network classifier as train(maps, val, nPresentations, eta), on samples of features
+   * @param samples the samples of features (see featuresAll)
+   * @param val the samples of features which are used for validation
+   * @param nPresentations the number of samples to present
+   * @param eta the learning rate
+   */
+  void train(Samples samples, Samples val, int nPresentations, double eta) {
+    requireUncompressed();
     double cumerror = 0;
-    double cumerror2 = 0;
-    for (int p=0; p<nPresentations; p++) {
-      int sample=rand.nextInt(maps.length);
-      double error = nn.train(((Bitmap)maps[sample]).toDoubleArray(), targets[maps[sample].getTarget()], eta);
-      int sample2 = rand.nextInt(val.length);
-      double error2 = nn.error(((Bitmap)val[sample2]).toDoubleArray(), targets[val[sample2].getTarget()]);
-
-      cumerror += error;
-      cumerror2 += error2;
-      if (p%3000 == 0) {
-        System.out.println(p + " " + cumerror/3000 + " " + cumerror2/3000);
-        cumerror = 0;
-        cumerror2 = 0;
+    FeatureView[] inputs=samples.inputs;
+    Validator validator=new Validator(val);
+    try {
+      int p=0;
+      while (p<nPresentations) {
+        int sample=rand.nextInt(inputs.length);
+        if (floatNN!=null)
+          cumerror += floatNN.train(inputs[sample], targets[samples.classes[sample]], eta);
+        else
+          cumerror += nn.train(inputs[sample], targets[samples.classes[sample]], eta);
+        p++;
+        presented(1);
+        if (p%validationInterval() == 0) {
+          if (!validator.validate(p, cumerror/validationInterval()))
+            break;
+          cumerror = 0;
+        }
+      }
+      validator.finish(p, cumerror/Math.max(1, p%validationInterval()));
+    } finally {
+      validator.shutdown();
+    }
+  }
+
+  /**
+   * Choose how training with validation samples validates the network
+   * @param interval the number of samples presented between validation passes (e.g. 3000)
+   * @param patience the number of validation passes without improvement after which training stops
+   * (0 to train for all samples)
+   */
+  public void setValidation(int interval, int patience) {
+    if (interval<1 || patience<0)
+      throw new IllegalArgumentException("Got validation interval "+interval+" and patience "+patience);
+    validationInterval=interval;
+    this.patience=patience;
+  }
+
+  private int validationInterval() {
+    return validationInterval>0?validationInterval:3000;
+  }
+
+  /**
+   * Write checkpoints of the classifier to a file while it is trained, so that training can resume from the last
+   * checkpoint (see getPresented). A checkpoint holds the weights, the state of the optimizer, the state of the
+   * random numbers and the number of samples presented; it is written in the background and replaces the last
+   * one in one step. Training with several threads checkpoints between its validation intervals (or between
+   * checkpoint intervals without validation data), while the threads wait.
+   * @param filename the file of the checkpoints, or null to write none
+   * @param interval the number of samples presented between checkpoints
+   */
+  public void setCheckpoint(String filename, int interval) {
+    finishCheckpoint();
+    checkpointer=filename==null?null:new Checkpointer(filename, interval);
+  }
+
+  /**
+   * Wait until the last checkpoint is written
+   */
+  public void finishCheckpoint() {
+    if (checkpointer!=null)
+      checkpointer.finish();
+  }
+
+  /**
+   * Determine the number of samples presented in training so far, over all calls to train. A classifier loaded
+   * from a checkpoint has been trained on this many samples.
+   * @return the number of samples
+   */
+  public int getPresented() {
+    return presented;
+  }
+
+  /**
+   * Count samples that have been presented, and take a checkpoint when the count reaches a multiple of the
+   * checkpoint interval
+   * @param n the number of samples
+   */
+  private void presented(int n) {
+    int before=presented;
+    presented+=n;
+    if (checkpointer!=null && before/checkpointer.getInterval()!=presented/checkpointer.getInterval())
+      checkpointer.write(this);
+  }
+
+  /**
+   * Validates snapshots of the network on all validation samples in a background thread, while training
+   * continues. It keeps the weights of the snapshot with the highest accuracy (the lowest error among equals),
+   * prints the training error, validation error and accuracy of each snapshot, and decides when training stops.
+   */
+  private class Validator {
+    private FeatureView[] inputs;
+    private int[] classes;
+    private ExecutorService thread=Executors.newSingleThreadExecutor();
+    private NN1 snapshot;          // the weights being validated (not changed until the validation is done)
+    private NN1 best;              // the weights of the best snapshot so far
+    private NN1.Workspace ws;      // the workspace of the snapshots, used by the background thread
+    private Future<double[]> pending; // the error and accuracy of the snapshot, when done
+    private int pendingP;          // the number of samples presented when the snapshot was taken
+    private double pendingError;   // the training error over the interval before the snapshot
+    private int lastP=-1;          // the number of samples presented when the last snapshot was taken
+    private double bestAccuracy=-1, bestError;
+    private int bestP;
+    private int sinceBest;         // the number of validation passes since the best
+    private boolean stopped;
+
+    Validator(Samples val) {
+      inputs=val.inputs;
+      classes=val.classes;
+      snapshot=floatNN!=null?floatNN.toNN1():new NN1(nn.wh[0].length, nn.wh.length, nn.w.length, 0);
+      best=new NN1(snapshot.wh[0].length, snapshot.wh.length, snapshot.w.length, 0);
+      ws=snapshot.newWorkspace();
+    }
+
+    /**
+     * Take a snapshot of the network and start validating it, after the previous validation is done
+     * @param p the number of samples presented
+     * @param trainingError the mean training error since the last snapshot
+     * @return false if training should stop
+     */
+    boolean validate(int p, double trainingError) {
+      if (!done())
+        return false;
+      if (floatNN!=null)
+        floatNN.copyTo(snapshot);
+      else
+        nn.copyTo(snapshot);
+      lastP=pendingP=p;
+      pendingError=trainingError;
+      pending=thread.submit(new Callable<double[]>() {
+        public double[] call() {
+          double error=0;
+          int correct=0;
+          for (int i=0; i<inputs.length; i++) {
+            double[] d=targets[classes[i]];
+            double[] o=snapshot.feedforward(inputs[i], ws);
+            double rmse=0;
+            int index=0;
+            for (int k=0; k<o.length; k++) {
+              rmse+=(d[k]-o[k])*(d[k]-o[k]);
+              if (o[k]>o[index])
+                index=k;
+            }
+            error+=Math.sqrt(rmse/o.length);
+            if (index==classes[i])
+              correct++;
+          }
+          return new double[] {error/inputs.length, (double)correct/inputs.length};
+        }
+      });
+      return true;
+    }
+
+    /**
+     * Wait until the validation of the last snapshot is done, and keep its weights if they are the best
+     * @return false if training should stop
+     */
+    private boolean done() {
+      if (pending==null)
+        return !stopped;
+      double[] result;
+      try {
+        result=pending.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return false;
+      } catch (ExecutionException ex) {
+        Throwable cause=ex.getCause();
+        if (cause instanceof Error)
+          throw (Error)cause;
+        throw (RuntimeException)cause;
+      }
+      pending=null;
+      System.out.println(pendingP + " " + pendingError + " " + result[0] + " " + result[1]);
+      if (result[1]>bestAccuracy || (result[1]==bestAccuracy && result[0]<bestError)) {
+        bestAccuracy=result[1];
+        bestError=result[0];
+        bestP=pendingP;
+        sinceBest=0;
+        // the validated snapshot becomes the best, and the old best is reused for the next snapshot
+        NN1 t=best;
+        best=snapshot;
+        snapshot=t;
+      } else if (patience>0 && ++sinceBest>=patience) {
+        System.out.println("Stopping early: no improvement since " + bestP);
+        stopped=true;
+      }
+      return !stopped;
+    }
+
+    /**
+     * Validate the network unless it was just validated, and give it the weights of the best snapshot
+     * @param p the number of samples presented
+     * @param trainingError the mean training error since the last snapshot
+     */
+    void finish(int p, double trainingError) {
+      if (p!=lastP)
+        validate(p, trainingError);
+      done();
+      if (bestAccuracy<0)
+        return;
+      if (floatNN!=null)
+        floatNN=new FloatNN1(best);
+      else
+        best.copyTo(nn);
+      System.out.println("Best validation accuracy " + bestAccuracy + " at " + bestP);
+    }
+
+    void shutdown() {
+      thread.shutdownNow();
+    }
+  }
+
+  /**
+   * Trains the neural network classifier on mini-batches of randomly picked samples from specified training
+   * data. The weights are changed once per batch, by the sum of the changes for its samples.
+   * @param maps the bitmaps which are used as training inputs including targets
+   * @param nPresentations the number of samples to present
+   * @param eta the learning rate
+   * @param batchSize the number of samples per batch (1 trains on one sample at a time, as train(maps, nPresentations, eta))
+   */
+  public void train(ClassifiedBitmap[] maps, int nPresentations, double eta, int batchSize) {
+    train(samplesAll(maps), nPresentations, eta, batchSize);
+  }
+
+  /**
+   * Trains the neural network classifier as train(maps, nPresentations, eta, batchSize), on samples of features
+   * @param samples the samples of features (see featuresAll)
+   * @param nPresentations the number of samples to present
+   * @param eta the learning rate
+   * @param batchSize the number of samples per batch
+   */
+  void train(Samples samples, int nPresentations, double eta, int batchSize) {
+    if (batchSize<=1) {
+      train(samples, nPresentations, eta);
+      return;
+    }
+    requireDouble();
+    FeatureView[] inputs=samples.inputs;
+    FeatureView[] batch=new FeatureView[batchSize];
+    double[][] batchTargets=new double[batchSize][];
+    for (int p=0; p<nPresentations; p+=batchSize) {
+      int n=Math.min(batchSize, nPresentations-p);
+      if (n<batch.length) {
+        batch=new FeatureView[n];
+        batchTargets=new double[n][];
+      }
+      for (int b=0; b<n; b++) {
+        int sample=rand.nextInt(inputs.length);
+        batch[b]=inputs[sample];
+        batchTargets[b]=targets[samples.classes[sample]];
+      }
+      nn.trainBatch(batch, batchTargets, eta);
+      presented(n);
+    }
+  }
+
+  /**
+   * Trains the neural network classifier on mini-batches of randomly picked samples from specified training
+   * data, and validates it in the background with early stopping, as train(maps, val, nPresentations, eta).
+   * @param maps the bitmaps which are used as training inputs including targets
+   * @param val the bitmaps which are used for validation
+   * @param nPresentations the number of samples to present
+   * @param eta the learning rate
+   * @param batchSize the number of samples per batch (1 trains on one sample at a time, as train(maps, val, nPresentations, eta))
+   */
+  public void train(ClassifiedBitmap[] maps, ClassifiedBitmap[] val, int nPresentations, double eta, int batchSize) {
+    train(samplesAll(maps), samplesAll(val), nPresentations, eta, batchSize);
+  }
+
+  /**
+   * Trains the neural network classifier as train(maps, val, nPresentations, eta, batchSize), on samples of
+   * features
+   * @param samples the samples of features (see featuresAll)
+   * @param val the samples of features which are used for validation
+   * @param nPresentations the number of samples to present
+   * @param eta the learning rate
+   * @param batchSize the number of samples per batch
+   */
+  void train(Samples samples, Samples val, int nPresentations, double eta, int batchSize) {
+    if (batchSize<=1) {
+      train(samples, val, nPresentations, eta);
+      return;
+    }
+    requireDouble();
+    double cumerror = 0;
+    int count = 0;
+    FeatureView[] inputs=samples.inputs;
+    FeatureView[] batch=new FeatureView[batchSize];
+    double[][] batchTargets=new double[batchSize][];
+    Validator validator=new Validator(val);
+    try {
+      int p=0;
+      while (p<nPresentations) {
+        int n=Math.min(batchSize, nPresentations-p);
+        if (n<batch.length) {
+          batch=new FeatureView[n];
+          batchTargets=new double[n][];
+        }
+        for (int b=0; b<n; b++) {
+          int sample=rand.nextInt(inputs.length);
+          batch[b]=inputs[sample];
+          batchTargets[b]=targets[samples.classes[sample]];
+        }
+        cumerror += nn.trainBatch(batch, batchTargets, eta)*n;
+        count += n;
+        p += n;
+        presented(n);
+        // validate once for each batch that reaches a multiple of the interval
+        if (p/validationInterval() != (p-n)/validationInterval()) {
+          if (!validator.validate(p, cumerror/count))
+            break;
+          cumerror = 0;
+          count = 0;
+        }
+      }
+      validator.finish(p, cumerror/Math.max(1, count));
+    } finally {
+      validator.shutdown();
+    }
+  }
+
+  /**
+   * Trains the neural network classifier with several threads at once. Each thread presents its share of
+   * randomly picked samples and changes the shared weights without locking (Hogwild training): the changes of
+   * a sample touch few of the weights, so the threads rarely overwrite each other's changes.
+   * @param maps the bitmaps which are used as training inputs including targets
+   * @param nPresentations the number of samples to present, over all threads
+   * @param eta the learning rate
+   * @param batchSize the number of samples per batch of each thread
+   * @param nThreads the number of threads (1 trains as train(maps, nPresentations, eta, batchSize))
+   */
+  public void train(ClassifiedBitmap[] maps, int nPresentations, double eta, int batchSize, int nThreads) {
+    train(samplesAll(maps), nPresentations, eta, batchSize, nThreads);
+  }
+
+  /**
+   * Trains the neural network classifier as train(maps, nPresentations, eta, batchSize, nThreads), on samples
+   * of features
+   * @param samples the samples of features (see featuresAll)
+   * @param nPresentations the number of samples to present, over all threads
+   * @param eta the learning rate
+   * @param batchSize the number of samples per batch of each thread
+   * @param nThreads the number of threads
+   */
+  void train(Samples samples, int nPresentations, double eta, int batchSize, int nThreads) {
+    if (nThreads<=1) {
+      train(samples, nPresentations, eta, batchSize);
+      return;
+    }
+    requireHogwild();
+    List<Worker> workers=new ArrayList<Worker>();
+    for (int t=0; t<nThreads; t++)
+      workers.add(new Worker(samples, eta, batchSize));
+    ExecutorService pool=Executors.newFixedThreadPool(nThreads);
+    try {
+      // the threads stop at each checkpoint interval, so that the checkpoint is of weights that do not change
+      int chunk=checkpointer==null?Math.max(1, nPresentations):checkpointer.getInterval();
+      for (int p=0; p<nPresentations; p+=chunk) {
+        int n=Math.min(chunk, nPresentations-p);
+        present(pool, workers, n);
+        if (Thread.currentThread().isInterrupted())
+          return;
+        presented(n);
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Trains the neural network classifier with several threads at once, as train(maps, nPresentations, eta,
+   * batchSize, nThreads), and validates it in the background with early stopping, as train(maps, val,
+   * nPresentations, eta). The threads stop at every validation interval, while the snapshot is taken.
+   * @param maps the bitmaps which are used as training inputs including targets
+   * @param val the bitmaps which are used for validation
+   * @param nPresentations the number of samples to present, over all threads
+   * @param eta the learning rate
+   * @param batchSize the number of samples per batch of each thread
+   * @param nThreads the number of threads (1 trains as train(maps, val, nPresentations, eta, batchSize))
+   */
+  public void train(ClassifiedBitmap[] maps, ClassifiedBitmap[] val, int nPresentations, double eta, int batchSize, int nThreads) {
+    train(samplesAll(maps), samplesAll(val), nPresentations, eta, batchSize, nThreads);
+  }
+
+  /**
+   * Trains the neural network classifier as train(maps, val, nPresentations, eta, batchSize, nThreads), on
+   * samples of features
+   * @param samples the samples of features (see featuresAll)
+   * @param val the samples of features which are used for validation
+   * @param nPresentations the number of samples to present, over all threads
+   * @param eta the learning rate
+   * @param batchSize the number of samples per batch of each thread
+   * @param nThreads the number of threads
+   */
+  void train(Samples samples, Samples val, int nPresentations, double eta, int batchSize, int nThreads) {
+    if (nThreads<=1) {
+      train(samples, val, nPresentations, eta, batchSize);
+      return;
+    }
+    requireHogwild();
+    List<Worker> workers=new ArrayList<Worker>();
+    for (int t=0; t<nThreads; t++)
+      workers.add(new Worker(samples, eta, batchSize));
+    ExecutorService pool=Executors.newFixedThreadPool(nThreads);
+    Validator validator=new Validator(val);
+    try {
+      int p=0;
+      double error=0;
+      while (p<nPresentations) {
+        int n=Math.min(validationInterval(), nPresentations-p);
+        error=present(pool, workers, n)/n;
+        if (Thread.currentThread().isInterrupted())
+          return;
+        p += n;
+        presented(n);
+        if (!validator.validate(p, error))
+          break;
+      }
+      validator.finish(p, error);
+    } finally {
+      pool.shutdown();
+      validator.shutdown();
+    }
+  }
+
+  private void requireTrainable() {
+    if (int8NN!=null)
+      throw new IllegalStateException("A quantized network can not be trained or converted");
+  }
+
+  private void requireUncompressed() {
+    requireTrainable();
+    if (compressedNN!=null)
+      throw new IllegalStateException("A compressed network is only fine-tuned one sample at a time with one thread, without validation");
+  }
+
+  private void requireDouble() {
+    requireUncompressed();
+    if (floatNN!=null)
+      throw new IllegalStateException("Only one sample at a time with one thread is trained in float");
+  }
+
+  private void requireHogwild() {
+    requireDouble();
+    // an optimizer changes every weight by its state at every step, which the threads would race on
+    if (nn.getOptimizer()!=null)
+      throw new IllegalStateException("Hogwild training is done without an optimizer (train synchronously instead)");
+  }
+
+  /**
+   * Let the workers present a number of samples between them, and wait until they are done.
+   * @return the summed training errors of the samples
+   */
+  private static double present(ExecutorService pool, List<Worker> workers, int nPresentations) {
+    int nWorkers=workers.size();
+    for (int t=0; t<nWorkers; t++)
+      workers.get(t).nPresentations=(int)((long)nPresentations*(t+1)/nWorkers-(long)nPresentations*t/nWorkers);
+    double error=0;
+    for (double e : invokeAll(pool, workers))
+      error+=e;
+    return error;
+  }
+
+  /**
+   * Run tasks in a pool and wait until they are done. If the thread is interrupted the results are incomplete.
+   * @return the results of the tasks, in the order of the tasks
+   */
+  private static <T> List<T> invokeAll(ExecutorService pool, List<? extends Callable<T>> tasks) {
+    List<T> results=new ArrayList<T>();
+    try {
+      for (Future<T> result : pool.invokeAll(tasks))
+        results.add(result.get());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException ex) {
+      Throwable cause=ex.getCause();
+      if (cause instanceof Error)
+        throw (Error)cause;
+      throw (RuntimeException)cause;
+    }
+    return results;
+  }
+
+  /**
+   * A training thread, with its own random numbers and network workspace.
+   */
+  private class Worker implements Callable<Double> {
+    private Random rand;
+    private NN1.Workspace ws;
+    private FeatureView[] inputs;
+    private int[] classes;
+    private double eta;
+    private FeatureView[] batch;
+    private double[][] batchTargets;
+    int nPresentations;  // the number of samples to present when called
+
+    Worker(Samples samples, double eta, int batchSize) {
+      rand=new Random(NNClassifier.this.rand.nextLong());
+      ws=nn.newWorkspace();
+      inputs=samples.inputs;
+      classes=samples.classes;
+      this.eta=eta;
+      batch=new FeatureView[Math.max(1, batchSize)];
+      batchTargets=new double[batch.length][];
+    }
+
+    /**
+     * Present the samples
+     * @return the summed training errors of the samples
+     */
+    public Double call() {
+      double cumerror=0;
+      for (int p=0; p<nPresentations; p+=batch.length) {
+        int n=Math.min(batch.length, nPresentations-p);
+        if (n==1) {
+          int sample=rand.nextInt(inputs.length);
+          cumerror+=nn.train(inputs[sample], targets[classes[sample]], eta, ws);
+        } else {
+          FeatureView[] x=n==batch.length?batch:new FeatureView[n];
+          double[][] d=n==batch.length?batchTargets:new double[n][];
+          for (int b=0; b<n; b++) {
+            int sample=rand.nextInt(inputs.length);
+            x[b]=inputs[sample];
+            d[b]=targets[classes[sample]];
+          }
+          cumerror+=nn.trainBatch(x, d, eta, ws)*n;
+        }
+      }
+      return cumerror;
+    }
+  }
+
+  /**
+   * Trains the neural network classifier on mini-batches of randomly picked samples, with several threads at once,
+   * so that the result is the same every time for the same seed, batch size and number of threads. The samples
+   * of a batch are split between the threads, each thread computes the gradient of its part with the weights
+   * as they are before the batch, and the gradients are added pairwise in a fixed tree order before the weights
+   * are changed once.
+   * @param maps the bitmaps which are used as training inputs including targets
+   * @param nPresentations the number of samples to present
+   * @param eta the learning rate
+   * @param batchSize the number of samples per batch
+   * @param nThreads the number of threads
+   */
+  public void trainSynchronous(ClassifiedBitmap[] maps, int nPresentations, double eta, int batchSize, int nThreads) {
+    trainSynchronous(maps, null, nPresentations, eta, batchSize, nThreads);
+  }
+
+  /**
+   * Trains the neural network classifier as trainSynchronous(maps, nPresentations, eta, batchSize, nThreads),
+   * and validates it in the background with early stopping, as train(maps, val, nPresentations, eta).
+   * @param maps the bitmaps which are used as training inputs including targets
+   * @param val the bitmaps which are used for validation, or null
+   * @param nPresentations the number of samples to present
+   * @param eta the learning rate
+   * @param batchSize the number of samples per batch
+   * @param nThreads the number of threads
+   */
+  public void trainSynchronous(ClassifiedBitmap[] maps, ClassifiedBitmap[] val, int nPresentations, double eta, int batchSize, int nThreads) {
+    trainSynchronous(samplesAll(maps), samplesAll(val), nPresentations, eta, batchSize, nThreads);
+  }
+
+  /**
+   * Trains the neural network classifier as trainSynchronous(maps, val, nPresentations, eta, batchSize,
+   * nThreads), on samples of features
+   * @param samples the samples of features (see featuresAll)
+   * @param val the samples of features which are used for validation, or null
+   * @param nPresentations the number of samples to present
+   * @param eta the learning rate
+   * @param batchSize the number of samples per batch
+   * @param nThreads the number of threads
+   */
+  void trainSynchronous(Samples samples, Samples val, int nPresentations, double eta, int batchSize, int nThreads) {
+    requireDouble();
+    batchSize=Math.max(1, batchSize);
+    nThreads=Math.max(1, nThreads);
+    double cumerror = 0;
+    int count = 0;
+    FeatureView[] inputs=samples.inputs;
+    FeatureView[] batch=new FeatureView[batchSize];
+    double[][] batchTargets=new double[batchSize][];
+    List<Shard> shards=new ArrayList<Shard>();
+    for (int t=0; t<nThreads; t++)
+      shards.add(new Shard(batch, batchTargets));
+    ExecutorService pool=Executors.newFixedThreadPool(nThreads);
+    Validator validator=val==null?null:new Validator(val);
+    try {
+      int p=0;
+      while (p<nPresentations) {
+        int n=Math.min(batchSize, nPresentations-p);
+        // the samples are drawn by this thread only, so that they do not depend on the scheduling of threads
+        for (int b=0; b<n; b++) {
+          int sample=rand.nextInt(inputs.length);
+          batch[b]=inputs[sample];
+          batchTargets[b]=targets[samples.classes[sample]];
+        }
+        for (int t=0; t<nThreads; t++) {
+          shards.get(t).from=n*t/nThreads;
+          shards.get(t).to=n*(t+1)/nThreads;
+        }
+        invokeAll(pool, shards);
+        if (Thread.currentThread().isInterrupted())
+          return;
+        // add the gradients pairwise: 0+=1, 2+=3, ..., then 0+=2, 4+=6, ..., until shard 0 holds the sum
+        for (int step=1; step<nThreads; step*=2) {
+          List<Callable<Object>> sums=new ArrayList<Callable<Object>>();
+          for (int t=0; t+step<nThreads; t+=2*step) {
+            final NN1.Gradient sum=shards.get(t).gradient;
+            final NN1.Gradient part=shards.get(t+step).gradient;
+            sums.add(new Callable<Object>() {
+              public Object call() {
+                sum.add(part);
+                return null;
+              }
+            });
+          }
+          invokeAll(pool, sums);
+        }
+        NN1.Gradient gradient=shards.get(0).gradient;
+        nn.update(gradient, eta);
+        p += n;
+        presented(n);
+
+        if (validator!=null) {
+          cumerror += gradient.getError();
+          count += n;
+          // validate once for each batch that reaches a multiple of the interval
+          if (p/validationInterval() != (p-n)/validationInterval()) {
+            if (!validator.validate(p, cumerror/count))
+              break;
+            cumerror = 0;
+            count = 0;
+          }
+        }
       }
+      if (validator!=null)
+        validator.finish(p, cumerror/Math.max(1, count));
+    } finally {
+      pool.shutdown();
+      if (validator!=null)
+        validator.shutdown();
+    }
+  }
+
+  /**
+   * A thread's part [from, to) of a batch in synchronous training, with its own network workspace and gradient.
+   */
+  private class Shard implements Callable<Object> {
+    private NN1.Workspace ws;
+    private FeatureView[] batch;
+    private double[][] batchTargets;
+    NN1.Gradient gradient;
+    int from, to;
+
+    Shard(FeatureView[] batch, double[][] batchTargets) {
+      ws=nn.newWorkspace();
+      gradient=nn.newGradient();
+      this.batch=batch;
+      this.batchTargets=batchTargets;
+    }
+
+    /**
+     * Compute the gradient of the part of the batch
+     * @return null
+     */
+    public Object call() {
+      nn.gradient(batch, batchTargets, from, to, gradient, ws);
+      return null;
     }
   }
 
@@ -79,8 +1037,29 @@ public class NNClassifier extends LetterClassifier {
    * @param nCols number of columns in the bitmap
    */
   public NNClassifier(int nRows, int nCols, int nHidden) {
-    rand=new Random(System.currentTimeMillis());
-    nn=new NN1(nRows*nCols, nHidden, getClassCount(), rand.nextInt());
+    this(new PixelFeatures(nRows, nCols), nHidden);
+  }
+
+  /**
+   * Construct a neural network classifier which is presented with the specified features of bitmaps.
+   * @param features the features of the bitmaps that are input to the network
+   * @param nHidden number of hidden nodes
+   */
+  public NNClassifier(FeatureExtractor features, int nHidden) {
+    this(features, nHidden, System.currentTimeMillis());
+  }
+
+  /**
+   * Construct a neural network classifier which is presented with the specified features of bitmaps, and
+   * which picks its initial weights and training samples by a seeded random number generator.
+   * @param features the features of the bitmaps that are input to the network
+   * @param nHidden number of hidden nodes
+   * @param seed the seed of the random numbers
+   */
+  public NNClassifier(FeatureExtractor features, int nHidden, long seed) {
+    this.features=features;
+    rand=new Random(seed);
+    nn=new NN1(features.getFeatureCount(), nHidden, getClassCount(), rand.nextInt());
     targets=new double[getClassCount()][getClassCount()];
     for (int c=0; c<getClassCount(); c++)
       targets[c][c]=1;
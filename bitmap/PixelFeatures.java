@@ -0,0 +1,33 @@
+package bitmap;
+
+import machl.FeatureView;
+
+/**
+ * <p>Uses the pixels of the bitmap as features, one per pixel, without copying them.</p>
+ */
+
+public class PixelFeatures extends FeatureExtractor {
+  private static final long serialVersionUID = 1L;
+  private int nRows, nCols;
+
+  /**
+   * @param nRows number of rows in the bitmaps
+   * @param nCols number of columns in the bitmaps
+   */
+  public PixelFeatures(int nRows, int nCols) {
+    this.nRows=nRows;
+    this.nCols=nCols;
+  }
+
+  public int getFeatureCount() {
+    return nRows*nCols;
+  }
+
+  public String getLabel(int index) {
+    return "R"+(index/nCols)+"C"+(index%nCols);
+  }
+
+  public FeatureView extract(Bitmap map) {
+    return map;
+  }
+}
@@ -0,0 +1,71 @@
+package bitmap;
+
+import machl.FeatureVector;
+import machl.FeatureView;
+
+/**
+ * <p>Uses projections and profiles of the bitmap as features: the fraction of pixels that are on in
+ * each row and in each column, and for each row (column) the distance from the left and right (top and
+ * bottom) edge to the first pixel that is on, as a fraction of the width (height).</p>
+ */
+
+public class ProjectionFeatures extends FeatureExtractor {
+  private static final long serialVersionUID = 1L;
+  private int nRows, nCols;
+
+  /**
+   * @param nRows number of rows in the bitmaps
+   * @param nCols number of columns in the bitmaps
+   */
+  public ProjectionFeatures(int nRows, int nCols) {
+    this.nRows=nRows;
+    this.nCols=nCols;
+  }
+
+  public int getFeatureCount() {
+    return 3*nRows+3*nCols;
+  }
+
+  public String getLabel(int index) {
+    String[] kinds={"RowSum", "ColSum", "Left", "Right", "Top", "Bottom"};
+    int[] sizes={nRows, nCols, nRows, nRows, nCols, nCols};
+    int k=0;
+    while (index>=sizes[k])
+      index-=sizes[k++];
+    return kinds[k]+index;
+  }
+
+  public FeatureView extract(Bitmap map) {
+    double[] f=new double[getFeatureCount()];
+    int rowSum=0, colSum=nRows, left=colSum+nCols, right=left+nRows, top=right+nRows, bottom=top+nCols;
+    for (int r=0; r<nRows; r++) {
+      f[left+r]=1;
+      f[right+r]=1;
+    }
+    for (int c=0; c<nCols; c++) {
+      f[top+c]=1;
+      f[bottom+c]=1;
+    }
+    // in one pass, the first pixel found in a row (column) gives the left (top) profile,
+    // and the last one the right (bottom) profile
+    for (int r=0; r<nRows; r++) {
+      for (int c=0; c<nCols; c++) {
+        if (map.isSet(r*nCols+c)) {
+          f[rowSum+r]++;
+          f[colSum+c]++;
+          if (f[left+r]==1)
+            f[left+r]=(double)c/nCols;
+          f[right+r]=(double)(nCols-1-c)/nCols;
+          if (f[top+c]==1)
+            f[top+c]=(double)r/nRows;
+          f[bottom+c]=(double)(nRows-1-r)/nRows;
+        }
+      }
+    }
+    for (int r=0; r<nRows; r++)
+      f[rowSum+r]/=nCols;
+    for (int c=0; c<nCols; c++)
+      f[colSum+c]/=nRows;
+    return new FeatureVector(f);
+  }
+}
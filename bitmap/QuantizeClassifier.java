@@ -0,0 +1,84 @@
+package bitmap;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * This program quantizes a saved neural network classifier, e.g. final.dat, to 8-bit weights, calibrated on a
+ * sample of bitmaps, and saves it in another file. Given a file of test bitmaps, it reports the accuracy of the
+ * network before and after quantization.
+ */
+
+public class QuantizeClassifier {
+
+  public QuantizeClassifier(String[] args, int nCalibration, String testFile) {
+    Classifier c=null;
+    try {
+      c=Classifier.load(args[0]);
+    } catch (IOException ex) {
+      System.err.println("Load of classifier failed: "+ex.getMessage());
+      System.exit(2);
+    } catch (ClassNotFoundException ex) {
+      System.err.println("Loaded classifier does not match available classes: "+ex.getMessage());
+      System.exit(3);
+    }
+    if (!(c instanceof NNClassifier)) {
+      System.err.println("Only neural network classifiers can be quantized, not "+c.getName());
+      System.exit(1);
+    }
+    NNClassifier nnc=(NNClassifier)c;
+    if (nnc.isQuantized()) {
+      System.err.println("The classifier is already quantized");
+      System.exit(1);
+    }
+    ClassifiedBitmap[] sample;
+    ClassifiedBitmap[] test=null;
+    try {
+      sample=LetterClassifier.loadLetters(args[1]);
+      if (testFile!=null)
+        test=LetterClassifier.loadLetters(testFile);
+    } catch (IOException ex) {
+      System.err.println("Error loading bitmap file: "+ex.getMessage());
+      System.exit(2);
+      return;
+    }
+    if (sample.length==0) {
+      System.err.println("No bitmaps to calibrate on in "+args[1]);
+      System.exit(1);
+    }
+    // calibrate on an evenly spread subset of the bitmaps
+    int n=Math.min(nCalibration, sample.length);
+    Bitmap[] calibration=new Bitmap[n];
+    for (int i=0; i<n; i++)
+      calibration[i]=sample[(int)((long)i*sample.length/n)];
+
+    double before=test==null?0:EvalClassifier.accuracy(nnc, test);
+    nnc.quantize(calibration);
+    if (test!=null) {
+      double after=EvalClassifier.accuracy(nnc, test);
+      System.out.println("Accuracy before quantization: "+before);
+      System.out.println("Accuracy after quantization:  "+after);
+      System.out.println("Accuracy loss:                "+(before-after));
+    }
+    try {
+      Classifier.save(nnc, args[2]);
+    } catch (IOException ex) {
+      System.err.println("Failed to serialize and save file: "+ex.getMessage());
+      System.exit(2);
+    }
+  }
+
+  public static void main(String[] args) {
+    List<String> list=new ArrayList<String>(Arrays.asList(args));
+    int nCalibration=Integer.parseInt(TrainClassifier.option(list, "-calibrate", "1000"));
+    String testFile=TrainClassifier.option(list, "-test", null);
+    args=list.toArray(new String[list.size()]);
+    if (args.length!=3 || nCalibration<1) {
+      System.err.println("Usage: QuantizeClassifier [-calibrate n] [-test <bitmap-file>] <classifier-file> <calibration-bitmap-file> <output-file>");
+      System.exit(1);
+    }
+    new QuantizeClassifier(args, nCalibration, testFile);
+    System.out.println("Done.");
+  }
+
+}
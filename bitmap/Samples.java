@@ -0,0 +1,107 @@
+package bitmap;
+
+import java.io.*;
+import machl.FeatureView;
+
+/**
+ * <p>Classified samples for training and validation: the inputs of each sample and its target class.</p>
+ * The inputs are either the pixels of the samples, or the features that a network is presented with (see
+ * NNClassifier.featuresOf). Samples of a BitmapFile read the pixels of its records where the file is mapped, so
+ * the bitmaps of a large file are not copied onto the heap. The inputs are only read, so classifiers that are
+ * trained at the same time can share them.
+ */
+
+class Samples {
+  final FeatureView[] inputs;  // the inputs of each sample
+  final int[] classes;         // the target class of each sample
+  private BitmapFile file;     // the file whose records are the inputs (null: the inputs are bitmaps or features)
+
+  /**
+   * Create samples from their inputs and classes
+   * @param inputs the inputs of each sample (not copied)
+   * @param classes the target class of each sample (not copied)
+   */
+  Samples(FeatureView[] inputs, int[] classes) {
+    if (inputs.length!=classes.length)
+      throw new IllegalArgumentException("Got inputs of "+inputs.length+" samples but "+classes.length+" classes");
+    this.inputs=inputs;
+    this.classes=classes;
+  }
+
+  /**
+   * Create samples of the pixels of classified bitmaps
+   * @param maps the bitmaps
+   * @return the samples
+   */
+  static Samples of(ClassifiedBitmap[] maps) {
+    int[] classes=new int[maps.length];
+    for (int i=0; i<maps.length; i++)
+      classes[i]=maps[i].getTarget();
+    return new Samples(maps, classes);
+  }
+
+  /**
+   * Create samples of the pixels of the records of a bitmap file, which are read where the file is mapped
+   * @param file the classified bitmap file
+   * @return the samples
+   * @throws IOException if the file is unclassified
+   */
+  static Samples of(BitmapFile file) throws IOException {
+    if (!file.isClassified())
+      throw new IOException("The bitmap file does not hold target classes");
+    FeatureView[] inputs=new FeatureView[file.size()];
+    int[] classes=new int[file.size()];
+    for (int i=0; i<inputs.length; i++) {
+      inputs[i]=file.getRecord(i);
+      classes[i]=file.getTarget(i);
+    }
+    Samples samples=new Samples(inputs, classes);
+    samples.file=file;
+    return samples;
+  }
+
+  /**
+   * Load samples of the pixels of a file with classified bitmaps, as LetterClassifier.loadLetters but without
+   * copying the bitmaps: a binary BitmapFile is mapped, and a text-file is mapped through its BitmapCache entry
+   * (or loaded as bitmaps if the cache is disabled).
+   * @param filename the name of the file
+   * @return the samples
+   * @throws IOException if the file operation fails
+   */
+  static Samples load(String filename) throws IOException {
+    BitmapFile file=BitmapFile.isBitmapFile(filename)?BitmapFile.open(filename):BitmapCache.openClassified(filename);
+    if (file==null)
+      return of(LetterClassifier.loadLetters(filename));
+    return of(file);
+  }
+
+  /**
+   * Determine the number of samples
+   * @return the number of samples
+   */
+  int size() {
+    return inputs.length;
+  }
+
+  /**
+   * Create a bitmap for getBitmap to copy records into
+   * @return the bitmap, or null if the inputs are bitmaps already
+   */
+  Bitmap newBitmap() {
+    return file==null?null:new Bitmap(file.getRows(), file.getCols());
+  }
+
+  /**
+   * Get the pixels of a sample as a bitmap, e.g. to classify it. A record of a file is copied into a bitmap
+   * of the caller, which is overwritten by the next call.
+   * @param sample the index of the sample
+   * @param bmap the bitmap that records are copied into (from newBitmap)
+   * @return the bitmap of the sample
+   */
+  Bitmap getBitmap(int sample, Bitmap bmap) {
+    if (file==null)
+      return (Bitmap)inputs[sample];
+    file.copyValues(sample, bmap);
+    return bmap;
+  }
+}
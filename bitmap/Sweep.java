@@ -0,0 +1,198 @@
+package bitmap;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * <p>Trains classifiers with different settings at the same time and ranks them by their accuracy on validation
+ * bitmaps, for TrainClassifier -sweep.</p>
+ * The spec lists values of the settings "iterations", "eta" and "hidden", e.g. "eta=0.1,0.3,0.7;hidden=16,32";
+ * settings that are not listed keep the value of the command line. A grid search trains a classifier for every
+ * combination of the values. A random search trains a number of classifiers with values drawn from the lists, or
+ * from ranges given as "low:high" (eta is drawn on a log scale, the others uniformly). The bitmaps are mapped (see
+ * Samples) and their features extracted once, and the classifiers are trained on them by a fixed number of threads.
+ */
+
+class Sweep {
+  private static final List<String> SETTINGS=Arrays.asList("iterations", "eta", "hidden");
+  private TrainClassifier.Options options;
+  private Map<String, String> spec=new LinkedHashMap<String, String>(); // the values of each setting, as given
+
+  /**
+   * Create a sweep
+   * @param options the settings of the classifiers, which the spec varies
+   * @param spec the values of the settings, e.g. "eta=0.1,0.3;hidden=16,32"
+   */
+  Sweep(TrainClassifier.Options options, String spec) {
+    this.options=options;
+    for (String part : spec.split(";")) {
+      int eq=part.indexOf('=');
+      String name=eq<0?part.trim():part.substring(0, eq).trim();
+      if (!SETTINGS.contains(name))
+        throw new IllegalArgumentException("Unknown sweep setting: "+name+" (use iterations, eta or hidden)");
+      if (eq<0 || part.substring(eq+1).trim().isEmpty())
+        throw new IllegalArgumentException("No values for sweep setting: "+name);
+      this.spec.put(name, part.substring(eq+1).trim());
+    }
+  }
+
+  /**
+   * Determine the settings of every combination of the listed values
+   * @return the settings of each classifier
+   */
+  List<TrainClassifier.Options> grid() {
+    List<TrainClassifier.Options> candidates=new ArrayList<TrainClassifier.Options>();
+    candidates.add(options.copy());
+    for (Map.Entry<String, String> entry : spec.entrySet()) {
+      if (entry.getValue().contains(":"))
+        throw new IllegalArgumentException("Ranges are only for random search: "+entry.getKey()+"="+entry.getValue());
+      List<TrainClassifier.Options> combined=new ArrayList<TrainClassifier.Options>();
+      for (TrainClassifier.Options o : candidates) {
+        for (String value : entry.getValue().split(",")) {
+          TrainClassifier.Options c=o.copy();
+          set(c, entry.getKey(), value.trim());
+          combined.add(c);
+        }
+      }
+      candidates=combined;
+    }
+    return candidates;
+  }
+
+  /**
+   * Draw the settings of a number of classifiers from the listed values and ranges
+   * @param n the number of classifiers
+   * @param rand the random numbers
+   * @return the settings of each classifier
+   */
+  List<TrainClassifier.Options> random(int n, Random rand) {
+    List<TrainClassifier.Options> candidates=new ArrayList<TrainClassifier.Options>();
+    for (int i=0; i<n; i++) {
+      TrainClassifier.Options c=options.copy();
+      for (Map.Entry<String, String> entry : spec.entrySet())
+        set(c, entry.getKey(), draw(entry.getKey(), entry.getValue(), rand));
+      candidates.add(c);
+    }
+    return candidates;
+  }
+
+  private static String draw(String name, String values, Random rand) {
+    int colon=values.indexOf(':');
+    if (colon<0) {
+      String[] list=values.split(",");
+      return list[rand.nextInt(list.length)].trim();
+    }
+    double low=Double.parseDouble(values.substring(0, colon).trim());
+    double high=Double.parseDouble(values.substring(colon+1).trim());
+    if (low<=0 || high<low)
+      throw new IllegalArgumentException("Bad range for sweep setting "+name+": "+values);
+    if (name.equals("eta"))
+      return String.valueOf(low*Math.pow(high/low, rand.nextDouble()));
+    return String.valueOf((long)low+rand.nextInt((int)((long)high-(long)low+1)));
+  }
+
+  private static void set(TrainClassifier.Options o, String name, String value) {
+    if (name.equals("iterations"))
+      o.iterations=Integer.parseInt(value);
+    else if (name.equals("eta"))
+      o.eta=Double.parseDouble(value);
+    else
+      o.hidden=Integer.parseInt(value);
+  }
+
+  private static String describe(TrainClassifier.Options o) {
+    return "iterations="+o.iterations+" eta="+o.eta+" hidden="+o.hidden;
+  }
+
+  /**
+   * The classifier trained with some settings, and its accuracy on the validation bitmaps
+   */
+  private static class Result {
+    TrainClassifier.Options options;
+    LetterClassifier classifier;
+    double accuracy;
+    double seconds;
+  }
+
+  /**
+   * Train and validate a classifier for each of the settings, print them ranked by validation accuracy, and
+   * save the best
+   * @param candidates the settings of each classifier
+   * @param filename the file of the best classifier
+   * @param training the file of the training bitmaps
+   * @param validation the file of the validation bitmaps
+   * @param nThreads the number of classifiers trained at once
+   */
+  void run(List<TrainClassifier.Options> candidates, String filename, String training, String validation, int nThreads) {
+    final Samples bitmaps;
+    final Samples bitmaps2;
+    try {
+      bitmaps=Samples.load(training);
+      bitmaps2=Samples.load(validation);
+    } catch (IOException ex) {
+      System.err.println("Error loading bitmap file: "+ex.getMessage());
+      return;
+    }
+    // all neural networks are presented with the same features, so they are extracted once and shared
+    final Samples inputs=options.convolutional?null:NNClassifier.featuresOf(options.features, bitmaps);
+    final int n=candidates.size();
+    System.out.println("Training "+n+" classifiers, "+nThreads+" at a time");
+    long start=System.nanoTime();
+    ExecutorService pool=Executors.newFixedThreadPool(nThreads);
+    List<Future<Result>> futures=new ArrayList<Future<Result>>();
+    for (final TrainClassifier.Options o : candidates) {
+      futures.add(pool.submit(new Callable<Result>() {
+        public Result call() {
+          Result r=new Result();
+          long begin=System.nanoTime();
+          r.options=o;
+          r.classifier=o.create();
+          if (r.classifier instanceof NNClassifier)
+            o.trainNetwork((NNClassifier)r.classifier, inputs, null);
+          else
+            o.train(r.classifier, bitmaps, null);
+          r.accuracy=EvalClassifier.accuracy(r.classifier, bitmaps2);
+          r.seconds=(System.nanoTime()-begin)/1e9;
+          System.out.println(describe(o)+": accuracy "+r.accuracy+" in "+r.seconds+" s");
+          return r;
+        }
+      }));
+    }
+    pool.shutdown();
+    List<Result> results=new ArrayList<Result>();
+    for (int i=0; i<n; i++) {
+      try {
+        results.add(futures.get(i).get());
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        pool.shutdownNow();
+        return;
+      } catch (ExecutionException ex) {
+        System.err.println(describe(candidates.get(i))+": failed: "+ex.getCause());
+      }
+    }
+    double total=(System.nanoTime()-start)/1e9;
+    // the most accurate first, and the fastest among equals
+    Collections.sort(results, new Comparator<Result>() {
+      public int compare(Result a, Result b) {
+        if (a.accuracy!=b.accuracy)
+          return Double.compare(b.accuracy, a.accuracy);
+        return Double.compare(a.seconds, b.seconds);
+      }
+    });
+    System.out.println("Rank\tIterations\tEta\tHidden\tAccuracy\tSeconds");
+    for (int i=0; i<results.size(); i++) {
+      Result r=results.get(i);
+      System.out.println((i+1)+"\t"+r.options.iterations+"\t"+r.options.eta+"\t"+r.options.hidden+"\t"+r.accuracy+"\t"+String.format("%.1f", r.seconds));
+    }
+    System.out.println("Wall time "+String.format("%.1f", total)+" s");
+    if (results.isEmpty())
+      return;
+    try {
+      Classifier.save(results.get(0).classifier, filename);
+    } catch (Exception ex) {
+      System.err.println("Failed to serialize and save file: "+ex.getMessage());
+    }
+  }
+}
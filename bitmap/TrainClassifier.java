@@ -1,6 +1,9 @@
 package bitmap;
 
 import java.io.*;
+import java.util.*;
+import machl.Activation;
+import machl.Optimizer;
 
 /**
  * This program trains a classifier and saves it in a file to be read when used.
@@ -10,15 +13,129 @@ import java.io.*;
 
 public class TrainClassifier {
 
-  public TrainClassifier(String[] args, int iterations, double eta, int hidden) {
+  /**
+   * The settings of training, as given on the command line.
+   */
+  static class Options implements Cloneable {
+    int iterations=70000;
+    double eta=0.70;
+    int hidden=32;
+    FeatureExtractor features;
+    int batch=1;
+    int threads=1;
+    boolean synchronous=false;     // deterministic data-parallel training, instead of Hogwild
+    long seed=System.currentTimeMillis();
+    boolean useFloat=false;        // train and classify in float
+    String optimizer="sgd";        // see Optimizer.forName
+    double momentum=0.9;           // the momentum of the momentum and nesterov optimizers
+    boolean softmax=false;         // softmax outputs trained on cross-entropy, instead of logistic outputs
+    Activation activation=Activation.EXACT; // how the logistic function is computed
+    int validationInterval=3000;   // the samples between validation passes
+    int patience=0;                // the validation passes without improvement before stopping (0: never)
+    String checkpoint=null;        // the file of the checkpoints (null: none)
+    int checkpointInterval=10000;  // the samples between checkpoints
+    boolean resume=false;          // continue from the checkpoint, if there is one
+    boolean convolutional=false;   // a convolutional network on the pixels (CNNClassifier), instead of NNClassifier
+    int[] filters={8, 16};         // the filters of each convolution stage of the convolutional network
+    int kernel=5;                  // the size of the filters of the convolutional network
+
+    /**
+     * Copy these settings, e.g. to vary them for a sweep
+     * @return the copy
+     */
+    Options copy() {
+      try {
+        return (Options)clone();
+      } catch (CloneNotSupportedException ex) {
+        throw new AssertionError(ex);
+      }
+    }
+
+    /**
+     * Create a classifier of the chosen model with these settings
+     * @return the untrained (or partly trained) classifier
+     */
+    LetterClassifier create() {
+      if (convolutional)
+        return new CNNClassifier(32, 32, filters, kernel, hidden, seed);
+      return createClassifier();
+    }
+
+    /**
+     * Create a classifier with these settings, or load it from the checkpoint when resuming
+     * @return the untrained (or partly trained) classifier
+     */
+    NNClassifier createClassifier() {
+      if (resume && new File(checkpoint).exists()) {
+        try {
+          NNClassifier c=(NNClassifier)Classifier.load(checkpoint);
+          System.out.println("Resuming from "+checkpoint+" after "+c.getPresented()+" samples");
+          c.setCheckpoint(checkpoint, checkpointInterval);
+          return c;
+        } catch (Exception ex) {
+          System.err.println("Failed to load checkpoint, starting over: "+ex.getMessage());
+        }
+      }
+      NNClassifier c=new NNClassifier(features, hidden, seed);
+      c.setSoftmax(softmax);
+      c.setActivation(activation);
+      c.setOptimizer(Optimizer.forName(optimizer, momentum));
+      c.setFloat(useFloat);
+      c.setValidation(validationInterval, patience);
+      c.setCheckpoint(checkpoint, checkpointInterval);
+      return c;
+    }
+
+    /**
+     * Train a classifier of either model with these settings
+     * @param c the classifier
+     * @param bitmaps the training data, as pixels
+     * @param bitmaps2 the validation data as pixels, or null
+     */
+    void train(LetterClassifier c, Samples bitmaps, Samples bitmaps2) {
+      if (!(c instanceof CNNClassifier)) {
+        NNClassifier nnc=(NNClassifier)c;
+        trainNetwork(nnc, nnc.featuresAll(bitmaps), bitmaps2==null?null:nnc.featuresAll(bitmaps2));
+        return;
+      }
+      CNNClassifier cnn=(CNNClassifier)c;
+      System.out.println("Convolutional network of "+cnn.getParameterCount()+" parameters");
+      if (bitmaps2==null)
+        cnn.train(bitmaps,iterations,eta);
+      else
+        cnn.train(bitmaps,bitmaps2,iterations,eta);
+    }
+
+    /**
+     * Train a neural network classifier with these settings
+     * @param c the classifier
+     * @param bitmaps the training data, as the features of the classifier (see NNClassifier.featuresOf)
+     * @param bitmaps2 the validation data as features, or null
+     */
+    void trainNetwork(NNClassifier c, Samples bitmaps, Samples bitmaps2) {
+      // a resumed classifier has already been presented with some of the samples
+      int remaining=Math.max(0, iterations-c.getPresented());
+      if (synchronous)
+        c.trainSynchronous(bitmaps,bitmaps2,remaining,eta,batch,threads);
+      else if (bitmaps2==null)
+        c.train(bitmaps,remaining,eta,batch,threads);
+      else
+        c.train(bitmaps,bitmaps2,remaining,eta,batch,threads);
+      c.finishCheckpoint();
+      // the state of the optimizer is only needed to continue training
+      c.setOptimizer(null);
+    }
+  }
+
+  public TrainClassifier(String[] args, Options options) {
     // create the classifier
-    NNClassifier c=new NNClassifier(32, 32, hidden);
+    LetterClassifier c=options.create();
 
     // load data
     try {
-      ClassifiedBitmap[] bitmaps=LetterClassifier.loadLetters(args[1]);
+      Samples bitmaps=Samples.load(args[1]);
       // train it using all available training data
-      c.train(bitmaps,iterations,eta);
+      options.train(c, bitmaps, null);
     } catch (IOException ex) {
       System.err.println("Error loading data.txt: "+ex.getMessage());
     }
@@ -29,25 +146,25 @@ public class TrainClassifier {
     }
   }
 
-  public TrainClassifier(String[] args, int iterations, double eta, int hidden, String validation) {
+  public TrainClassifier(String[] args, Options options, String validation) {
     // create the classifier
-    NNClassifier c=new NNClassifier(32, 32, hidden);
-    ClassifiedBitmap[] bitmaps;
-    ClassifiedBitmap[] bitmaps2;
+    LetterClassifier c=options.create();
+    Samples bitmaps;
+    Samples bitmaps2;
     // load data
     try {
-      bitmaps=LetterClassifier.loadLetters(args[1]);
+      bitmaps=Samples.load(args[1]);
     } catch (IOException ex) {
       System.err.println("Error loading data.txt: "+ex.getMessage());
       return;
     }
     try {
-      bitmaps2=LetterClassifier.loadLetters(validation);
+      bitmaps2=Samples.load(validation);
     } catch (IOException ex) {
       System.err.println("Error loading validation.txt: "+ex.getMessage());
       return;
     }
-    c.train(bitmaps,bitmaps2,iterations,eta);
+    options.train(c, bitmaps, bitmaps2);
     try {
       Classifier.save(c, args[0]);
     } catch (Exception ex) {
@@ -56,36 +173,181 @@ public class TrainClassifier {
     }
   }
 
+  /**
+   * Removes an option and its value ("-name value") from the arguments
+   * @param args the arguments, from which the option is removed
+   * @param name the name of the option, e.g. "-features"
+   * @param defaultValue the value if the option is not given
+   * @return the value of the option
+   */
+  static String option(List<String> args, String name, String defaultValue) {
+    int i=args.indexOf(name);
+    if (i<0 || i+1>=args.size())
+      return defaultValue;
+    args.remove(i);
+    return args.remove(i);
+  }
+
+  /**
+   * Removes an option without a value ("-name") from the arguments
+   * @param args the arguments, from which the option is removed
+   * @param name the name of the option, e.g. "-resume"
+   * @return true if the option is given
+   */
+  static boolean flag(List<String> args, String name) {
+    return args.remove(name);
+  }
+
   public static void main(String[] args) {
+    List<String> list=new ArrayList<String>(Arrays.asList(args));
+    String featureName=option(list, "-features", "pixels");
+    String resolution=option(list, "-resolution", null);
+    Options options=new Options();
+    options.batch=Integer.parseInt(option(list, "-batch", "1"));
+    options.threads=Integer.parseInt(option(list, "-threads", "1"));
+    String parallel=option(list, "-parallel", "hogwild");
+    String seedValue=option(list, "-seed", null);
+    if (seedValue!=null)
+      options.seed=Long.parseLong(seedValue);
+    String precision=option(list, "-precision", "double");
+    options.optimizer=option(list, "-optimizer", "sgd");
+    options.momentum=Double.parseDouble(option(list, "-momentum", "0.9"));
+    String output=option(list, "-output", "sigmoid");
+    String sigmoid=option(list, "-sigmoid", "exact");
+    options.validationInterval=Integer.parseInt(option(list, "-validation-interval", "3000"));
+    options.patience=Integer.parseInt(option(list, "-patience", "0"));
+    options.checkpoint=option(list, "-checkpoint", null);
+    options.checkpointInterval=Integer.parseInt(option(list, "-checkpoint-interval", "10000"));
+    options.resume=flag(list, "-resume");
+    String model=option(list, "-model", "nn");
+    String sweep=option(list, "-sweep", null);
+    int sweepRandom=Integer.parseInt(option(list, "-sweep-random", "0"));
+    int sweepThreads=Integer.parseInt(option(list, "-sweep-threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+    String filters=option(list, "-filters", null);
+    options.kernel=Integer.parseInt(option(list, "-kernel", "5"));
+    args=list.toArray(new String[list.size()]);
     if (args.length<2) {
-      System.err.println("Usage: TrainClassifier <classifier-file> <bitmap-file> [iterations] [eta] [hidden-nodes] [<bitmap-file2>]");
+      System.err.println("Usage: TrainClassifier [-features pixels|moments|projections] [-resolution 16|8|...] [-batch size] [-threads n] [-parallel hogwild|sync] [-seed n] [-precision double|float] [-optimizer sgd|momentum|nesterov|adam] [-momentum m] [-output sigmoid|softmax] [-sigmoid exact|table|rational] [-validation-interval n] [-patience n] [-checkpoint file [-checkpoint-interval n] [-resume]] [-model nn|cnn [-filters 8,16] [-kernel 5]] [-sweep spec [-sweep-random n] [-sweep-threads n]] <classifier-file> <bitmap-file> [iterations] [eta] [hidden-nodes] [<bitmap-file2>]");
+      System.exit(1);
+    }
+    if (!parallel.equals("hogwild") && !parallel.equals("sync")) {
+      System.err.println("Unknown parallel training mode: "+parallel);
+      System.exit(1);
+    }
+    options.synchronous=parallel.equals("sync");
+    if (!model.equals("nn") && !model.equals("cnn")) {
+      System.err.println("Unknown model: "+model);
+      System.exit(1);
+    }
+    options.convolutional=model.equals("cnn");
+    if (options.convolutional) {
+      if (options.batch>1 || options.threads>1 || options.synchronous || !precision.equals("double")
+          || !options.optimizer.equals("sgd") || options.checkpoint!=null || resolution!=null || !featureName.equals("pixels")) {
+        System.err.println("The convolutional network is trained on pixels one sample at a time with one thread, in double, by sgd and without checkpoints");
+        System.exit(1);
+      }
+      if (filters!=null) {
+        String[] counts=filters.split(",");
+        options.filters=new int[counts.length];
+        for (int i=0; i<counts.length; i++)
+          options.filters[i]=Integer.parseInt(counts[i]);
+      }
+      // the rectified linear nodes and softmax outputs need a much smaller learning rate than the logistic network
+      options.eta=0.01;
+    } else if (filters!=null) {
+      System.err.println("Filters can only be given for the convolutional network");
+      System.exit(1);
+    }
+    if (!precision.equals("double") && !precision.equals("float")) {
+      System.err.println("Unknown precision: "+precision);
+      System.exit(1);
+    }
+    options.useFloat=precision.equals("float");
+    if (options.useFloat && (options.batch>1 || options.threads>1 || options.synchronous)) {
+      System.err.println("Training in float is only done one sample at a time with one thread");
+      System.exit(1);
+    }
+    if (!output.equals("sigmoid") && !output.equals("softmax")) {
+      System.err.println("Unknown output function: "+output);
+      System.exit(1);
+    }
+    options.softmax=output.equals("softmax");
+    try {
+      options.activation=Activation.forName(sigmoid);
+    } catch (IllegalArgumentException ex) {
+      System.err.println(ex.getMessage());
+      System.exit(1);
+    }
+    if (options.activation!=Activation.EXACT)
+      System.out.println("Sigmoid "+options.activation.getName()+": largest error "+options.activation.getMaxError());
+    if (options.checkpointInterval<1 || (options.resume && options.checkpoint==null)) {
+      System.err.println("Resuming needs a -checkpoint file, and the checkpoint interval must be positive");
+      System.exit(1);
+    }
+    if (options.validationInterval<1 || options.patience<0) {
+      System.err.println("The validation interval must be positive and the patience not negative");
+      System.exit(1);
+    }
+    try {
+      if (Optimizer.forName(options.optimizer, options.momentum)!=null && options.useFloat) {
+        System.err.println("Training in float is only done without an optimizer");
+        System.exit(1);
+      }
+      if (Optimizer.forName(options.optimizer, options.momentum)!=null && options.threads>1 && !options.synchronous) {
+        System.err.println("Hogwild training is only done without an optimizer; use -parallel sync");
+        System.exit(1);
+      }
+    } catch (IllegalArgumentException ex) {
+      System.err.println(ex.getMessage());
+      System.exit(1);
+    }
+    try {
+      if (resolution==null)
+        options.features=FeatureExtractor.forName(featureName, 32, 32);
+      else if (featureName.equalsIgnoreCase("pixels"))
+        options.features=new PooledFeatures(32, 32, Integer.parseInt(resolution));
+      else
+        throw new IllegalArgumentException("A resolution can only be given for pixel features");
+    } catch (IllegalArgumentException ex) {
+      System.err.println(ex.getMessage());
       System.exit(1);
     }
     String[] files = {args[0], args[1]};
-    int iterations = 70000;
-    double eta = 0.70;
-    int hidden = 32;
     String validation = null;
     for (int i = 2; i < args.length; i++) {
       switch(i) {
         case 2:
-          iterations = Integer.parseInt(args[2]);
+          options.iterations = Integer.parseInt(args[2]);
           break;
         case 3:
-          eta = Double.parseDouble(args[3]);
+          options.eta = Double.parseDouble(args[3]);
           break;
         case 4:
-          hidden = Integer.parseInt(args[4]);
+          options.hidden = Integer.parseInt(args[4]);
           break;
         case 5:
           validation = args[5];
           break;
       }
     }
-    if (validation == null) {
-        new TrainClassifier(args, iterations, eta, hidden);
+    if (sweep != null) {
+      // the best of the swept classifiers is saved
+      if (validation == null || options.checkpoint != null || sweepRandom < 0 || sweepThreads < 1) {
+        System.err.println("A sweep needs a validation bitmap file and no checkpoint; e.g. -sweep \"eta=0.1,0.3,0.7;hidden=16,32\" or -sweep-random 20 -sweep \"eta=0.05:1;hidden=16:64\"");
+        System.exit(1);
+      }
+      try {
+        Sweep s = new Sweep(options, sweep);
+        List<Options> candidates = sweepRandom > 0 ? s.random(sweepRandom, new Random(options.seed)) : s.grid();
+        s.run(candidates, args[0], args[1], validation, sweepThreads);
+      } catch (IllegalArgumentException ex) {
+        System.err.println(ex.getMessage());
+        System.exit(1);
+      }
+    } else if (validation == null) {
+        new TrainClassifier(args, options);
     } else { 
-        new TrainClassifier(args, iterations, eta, hidden, validation);
+        new TrainClassifier(args, options, validation);
     }
     System.out.println("Done.");
   }
@@ -5,6 +5,9 @@ import java.io.*;
 /**
  * Given a bitmap file, this program prints the transformed version of the
  * bitmaps. (ie. centred and normalised in size)
+ * Given an output file as well, it writes the transformed bitmaps to a binary
+ * BitmapFile instead, which the other programs load without parsing or
+ * preprocessing.
  */
 
 public class Transform {
@@ -24,12 +27,30 @@ public class Transform {
     }
   }
 
+  // convert to a binary bitmap file
+  public Transform(String[] args, boolean classified) {
+    try {
+      Bitmap[] bitmaps;
+      if (classified)
+        bitmaps=LetterClassifier.loadLetters(args[0]);
+      else
+        bitmaps=LetterClassifier.loadUnclassifiedLetters(args[0]);
+      BitmapFile.write(args[1], bitmaps);
+      System.out.println("Wrote "+bitmaps.length+" bitmaps to "+args[1]);
+    } catch (IOException ex) {
+      System.err.println("Error converting "+args[0]+": "+ex.getMessage());
+    }
+  }
+
   public static void main(String[] args) {
-    if (args.length!=1) {
-      System.err.println("Usage: Transform <bitmap-file>");
+    if (args.length<1 || args.length>3 || (args.length==3 && !args[2].equals("-unclassified"))) {
+      System.err.println("Usage: Transform <bitmap-file> [<binary-file> [-unclassified]]");
       System.exit(1);
     }
-    new Transform(args);
+    if (args.length==1)
+      new Transform(args);
+    else
+      new Transform(args, args.length==2);
   }
 
 }
@@ -0,0 +1,58 @@
+package machl;
+
+/**
+ * <p>The Adam optimizer (Kingma and Ba, 2015): each weight moves by the learning rate times a running mean of
+ * its gradient, divided by the square root of a running mean of its squared gradient, so that every weight takes
+ * steps of about the learning rate whatever the scale of its gradient. Learning rates around 0.001 suit it.</p>
+ */
+
+public class Adam extends Optimizer {
+  private static final long serialVersionUID = 1L;
+  private double beta1, beta2, epsilon;
+  private double[][] m;     // the running mean of the gradient of each weight (see Optimizer.newState)
+  private double[][] v;     // the running mean of the squared gradient of each weight
+  private long t;           // the number of updates
+  private transient double correction1, correction2; // the bias corrections of m and v in the current update
+
+  /**
+   * Create an Adam optimizer with the usual decay rates, 0.9 and 0.999
+   */
+  public Adam() {
+    this(0.9, 0.999, 1e-8);
+  }
+
+  /**
+   * Create an Adam optimizer
+   * @param beta1 the decay rate of the running mean of the gradient
+   * @param beta2 the decay rate of the running mean of the squared gradient
+   * @param epsilon added to the root of the squared gradient, to avoid division by 0
+   */
+  public Adam(double beta1, double beta2, double epsilon) {
+    this.beta1=beta1;
+    this.beta2=beta2;
+    this.epsilon=epsilon;
+  }
+
+  protected void init(NN1 nn) {
+    m=newState(nn);
+    v=newState(nn);
+    t=0;
+  }
+
+  protected void begin() {
+    t++;
+    correction1=1.0/(1.0-Math.pow(beta1, t));
+    correction2=1.0/(1.0-Math.pow(beta2, t));
+  }
+
+  protected void step(double[] p, double[] g, int row, double eta) {
+    double[] mr=m[row], vr=v[row];
+    double b1=beta1, b2=beta2, c1=correction1*eta, c2=correction2;
+    for (int j=0; j<p.length; j++) {
+      double gj=g[j];
+      mr[j]=b1*mr[j]+(1-b1)*gj;
+      vr[j]=b2*vr[j]+(1-b2)*gj*gj;
+      p[j]+=c1*mr[j]/(Math.sqrt(vr[j]*c2)+epsilon);
+    }
+  }
+}
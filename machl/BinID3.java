@@ -11,10 +11,19 @@ import java.io.*;
   */
 
 public class BinID3 implements Serializable {
-  boolean[][] input;  // the input feature values
+  private static final long serialVersionUID = -2830028752521458545L; // keep models saved by earlier versions loadable
+  // when a partition holds at least 1/PACKED_FRACTION of all samples, features are evaluated by counting bits
+  private static final int PACKED_FRACTION = 128;
+  PackedBitmap[] samples; // the input feature values, one bit vector per sample
   String[] output;    // the outputs for each input
   String[] label;     // the name of each input feature
   String[] classes;   // the possible class labels
+  transient PackedBitmap[] columns;  // for each feature, the samples in which it is true
+  transient PackedBitmap[] members;  // for each class, the samples which belong to it
+  transient int[] classOf;           // the index in classes of the output of each sample (-1 if none)
+  transient int[] index;             // the samples, reordered so that the samples of each partition are together
+  transient int[] scratch;           // the samples with the feature false while a partition is split
+  transient int[] counts;            // the samples of a partition per feature and class, for selectFeature
 
   /** construct the instance using the data
    * @param label An array holding the labels of input features
@@ -23,12 +32,65 @@ public class BinID3 implements Serializable {
    * @param classes An array with all the possible target values
    */
   public BinID3(String[] label, boolean[][] input, String[] output, String[] classes) {
-    this.input=input;
+    this(label, pack(input), output, classes);
+  }
+
+  /** construct the instance using the data
+   * @param label An array holding the labels of input features
+   * @param samples An array holding the feature values of each sample as a bit vector [sample-no]
+   * @param output An array with all the corresponding output values [sample-no]
+   * @param classes An array with all the possible target values
+   */
+  public BinID3(String[] label, PackedBitmap[] samples, String[] output, String[] classes) {
+    this.samples=samples;
     this.output=output;
     this.label=label;
     this.classes=classes;
   }
 
+  private static PackedBitmap[] pack(boolean[][] input) {
+    PackedBitmap[] samples=new PackedBitmap[input.length];
+    for (int i=0; i<input.length; i++)
+      samples[i]=new PackedBitmap(input[i]);
+    return samples;
+  }
+
+  /** transpose the samples into one bit vector per feature and one per class (over the samples),
+   *  so that the samples of a partition that match a feature and a class can be counted with popcount,
+   *  and look up the class of each sample once, so that induction compares class ids rather than labels
+   */
+  private void buildColumns() {
+    columns=new PackedBitmap[label.length];
+    for (int f=0; f<label.length; f++)
+      columns[f]=new PackedBitmap(samples.length);
+    for (int s=0; s<samples.length; s++) {
+      long[] words=samples[s].getWords();
+      for (int i=0; i<words.length; i++) {
+        long word=words[i];
+        while (word!=0) {
+          int f=(i<<6)+Long.numberOfTrailingZeros(word);
+          columns[f].set(s, true);
+          word&=word-1;
+        }
+      }
+    }
+    classOf=new int[samples.length];
+    members=new PackedBitmap[classes.length];
+    for (int c=0; c<classes.length; c++)
+      members[c]=new PackedBitmap(samples.length);
+    for (int s=0; s<samples.length; s++) {
+      classOf[s]=-1;
+      for (int c=0; c<classes.length; c++) {
+        if (output[s].equalsIgnoreCase(classes[c])) {
+          classOf[s]=c;
+          members[c].set(s, true);
+          break;
+        }
+      }
+    }
+    counts=new int[label.length*(classes.length+1)];
+  }
+
   /** labelFeature
    * maps a feature index to the name of the feature
    */
@@ -66,46 +128,63 @@ public class BinID3 implements Serializable {
   /** selectFeature
    *  Pick the feature which provides the greatest information gain
    *  using Shannon's information theory. The method assumes that features are either true or false.
-   *  @param  partition an array holding the indices of the tuples in the current set
-   *  @param  features  an array holding the indices of the features that can be selected
-   *  @return the feature which provides the greatest information gain
+   *  The samples of the partition are counted per feature and class in one pass over their true features.
+   *  @param  from      the position of the first sample of the current set in index
+   *  @param  to        the position after the last sample of the current set in index
+   *  @param  features  an array holding the indices of the features that can be selected, in its first nFeatures places
+   *  @param  nFeatures the number of features that can be selected
+   *  @param  classCnt  the number of samples of the current set in each class
+   *  @return the position in features of the feature which provides the greatest information gain
    */
-  private int selectFeature(int[] partition, int[] features) {
-    double[] probs=new double[classes.length]; // allocate space for storing the ratio of each output class
-    // for each of the output classes
-    for (int c=0; c<classes.length; c++) {
-      // check how many samples that map to the class
-      int[] subset=matches(partition, classes[c]);
-      // calculate the ratio (to be seen as the probability of its occurrence)
-      probs[c]=(double)subset.length/(double)partition.length;
+  private int selectFeature(int from, int to, int[] features, int nFeatures, int[] classCnt) {
+    int n=to-from;
+    if ((long)n*PACKED_FRACTION>=samples.length)
+      return selectFeaturePacked(from, to, features, nFeatures, classCnt);
+    int nClasses=classes.length;
+    int stride=nClasses+1; // the counts of a feature: per class, then over all samples
+    for (int a=0; a<nFeatures; a++)
+      Arrays.fill(counts, features[a]*stride, (features[a]+1)*stride, 0);
+    for (int p=from; p<to; p++) {
+      int s=index[p];
+      int c=classOf[s];
+      long[] words=samples[s].getWords();
+      for (int i=0; i<words.length; i++) {
+        long word=words[i];
+        while (word!=0) {
+          int base=((i<<6)+Long.numberOfTrailingZeros(word))*stride;
+          if (c>=0)
+            counts[base+c]++;
+          counts[base+nClasses]++;
+          word&=word-1;
+        }
+      }
     }
+    double[] probs=new double[nClasses]; // allocate space for storing the ratio of each output class
+    for (int c=0; c<nClasses; c++)
+      probs[c]=(double)classCnt[c]/(double)n;
     // use the current partition's entropy as reference point
     double infoContent=infobits(probs);
     // while we iterate through possible features, keep track of the best gain so far
     double bestGain=-.999;
-    int bestFeature=features[0];
-    for (int a=0; a<features.length; a++) {
+    int best=0;
+    double[] probsTrue=new double[nClasses];
+    double[] probsFalse=new double[nClasses];
+    for (int a=0; a<nFeatures; a++) {
       double remainder=0;
-      // extract which samples that have the true value in the studied feature
-      int[] subsetTrue=matches(partition, features[a], true);
-      // extract which samples that have the false value in the studied feature
-      int[] subsetFalse=matches(partition, features[a], false);
-      // there will be two probability distributions (one for each of the above subsets) over the classes
-      double[] probsTrue=new double[classes.length];
-      double[] probsFalse=new double[classes.length];
+      int base=features[a]*stride;
+      // the samples that have the true value in the studied feature, the rest have the false value
+      int nTrue=counts[base+nClasses];
+      int nFalse=n-nTrue;
       // check so that we have two groups of samples
-      if (subsetTrue.length!=0 && subsetFalse.length!=0) {
-        // if so, go through each of the output classes
-        for (int c=0; c<classes.length; c++) {
-          // and extract the samples that match them, to be used for determining the probability distributions
-          int[] subset=matches(subsetTrue, classes[c]);
-          probsTrue[c]=(double)subset.length/(double)subsetTrue.length;
-          subset=matches(subsetFalse, classes[c]);
-          probsFalse[c]=(double)subset.length/(double)subsetFalse.length;
+      if (nTrue!=0 && nFalse!=0) {
+        // there will be two probability distributions (one for each group) over the classes
+        for (int c=0; c<nClasses; c++) {
+          probsTrue[c]=(double)counts[base+c]/(double)nTrue;
+          probsFalse[c]=(double)(classCnt[c]-counts[base+c])/(double)nFalse;
         }
         // now we calculate what remains after we've split the partition into the subsets with studied feature
-        remainder=((double)subsetTrue.length/(double)partition.length)*infobits(probsTrue)+
-            ((double)(subsetFalse.length)/(double)partition.length)*infobits(probsFalse);
+        remainder=((double)nTrue/(double)n)*infobits(probsTrue)+
+            ((double)nFalse/(double)n)*infobits(probsFalse);
       } else {
         // one subset was empty...
         remainder=infoContent;
@@ -115,55 +194,80 @@ public class BinID3 implements Serializable {
       // if best so far, remember...
       if (gain>bestGain) {
         bestGain=gain;
-        bestFeature=features[a];
+        best=a;
       }
     }
-    return bestFeature;
+    return best;
   }
 
-  /** the matches method goes through all tuples in specified partition and checks for matching values
-   *  @param  partition an array holding the inidces of the current set of samples
-   *  @param  feature the index of the feature (column) to be checked
-   *  @param  value the sought value
-   *  @return the subpartition matching the feature/value
+  /** selectFeature for large partitions
+   *  Same as selectFeature, but the samples are counted with popcount over the feature and class columns.
+   *  @param  from      the position of the first sample of the current set in index
+   *  @param  to        the position after the last sample of the current set in index
+   *  @param  features  an array holding the indices of the features that can be selected, in its first nFeatures places
+   *  @param  nFeatures the number of features that can be selected
+   *  @param  classCnt  the number of samples of the current set in each class
+   *  @return the position in features of the feature which provides the greatest information gain
    */
-  private int[] matches(int[] partition, int feature, boolean value) {
-    // to allocate the array we first check how many samples we're talking about
-    int nMatches=0;
-    for (int i=0; i<partition.length; i++) {
-      if (input[partition[i]][feature]==value)
-        nMatches++;
-    }
-    int[] subset=new int[nMatches]; // allocate the array holding the matching sample indices
-    int cnt=0;
-    // collect the matching samples
-    for (int i=0; i<partition.length; i++) {
-      if (input[partition[i]][feature]==value)
-        subset[cnt++]=partition[i];
+  private int selectFeaturePacked(int from, int to, int[] features, int nFeatures, int[] classCnt) {
+    int n=to-from;
+    PackedBitmap part=new PackedBitmap(samples.length);
+    for (int p=from; p<to; p++)
+      part.set(index[p], true);
+    double[] probs=new double[classes.length];
+    for (int c=0; c<classes.length; c++)
+      probs[c]=(double)classCnt[c]/(double)n;
+    double infoContent=infobits(probs);
+    double bestGain=-.999;
+    int best=0;
+    PackedBitmap partTrue=new PackedBitmap(samples.length);
+    double[] probsTrue=new double[classes.length];
+    double[] probsFalse=new double[classes.length];
+    for (int a=0; a<nFeatures; a++) {
+      double remainder=0;
+      // the samples that have the true value in the studied feature, the rest have the false value
+      part.and(columns[features[a]], partTrue);
+      int nTrue=partTrue.popcount();
+      int nFalse=n-nTrue;
+      if (nTrue!=0 && nFalse!=0) {
+        for (int c=0; c<classes.length; c++) {
+          int cntTrue=partTrue.andPopcount(members[c]);
+          probsTrue[c]=(double)cntTrue/(double)nTrue;
+          probsFalse[c]=(double)(classCnt[c]-cntTrue)/(double)nFalse;
+        }
+        remainder=((double)nTrue/(double)n)*infobits(probsTrue)+
+            ((double)nFalse/(double)n)*infobits(probsFalse);
+      } else {
+        remainder=infoContent;
+      }
+      double gain=infoContent-remainder;
+      if (gain>bestGain) {
+        bestGain=gain;
+        best=a;
+      }
     }
-    return subset;
+    return best;
   }
 
-  /** the matches method goes through all tuples in specified partition and checks for matching class values
-   *  @param  partition an array holding the inidces of the current set of samples
-   *  @param  classValue the class value to be matched
-   *  @return the subpartition matching the class value
+  /** partition reorders the current set of samples in index so that the samples with the feature true come
+   *  first. Both groups keep the order of the samples, as the subsets were collected before, because the test
+   *  for a majority class looks at the samples in order.
+   *  @param  from    the position of the first sample of the current set in index
+   *  @param  to      the position after the last sample of the current set in index
+   *  @param  feature the index of the feature (column) to be checked
+   *  @return the position of the first sample with the feature false (to if there is none)
    */
-  private int[] matches(int[] partition, String classValue) {
-    // to allocate the array we first check how many samples we're talking about
-    int nMatches=0;
-    for (int i=0; i<partition.length; i++) {
-      if (output[partition[i]].equalsIgnoreCase(classValue))
-        nMatches++;
-    }
-    int[] subset=new int[nMatches]; // allocate the array holding the matching sample indices
-    int cnt=0;
-    // collect the matching samples
-    for (int i=0; i<partition.length; i++) {
-      if (output[partition[i]].equalsIgnoreCase(classValue))
-        subset[cnt++]=partition[i];
+  private int partition(int from, int to, int feature) {
+    int nTrue=from, nFalse=0;
+    for (int p=from; p<to; p++) {
+      int sample=index[p];
+      if (samples[sample].isSet(feature))
+        index[nTrue++]=sample;
+      else
+        scratch[nFalse++]=sample;
     }
-    return subset;
+    System.arraycopy(scratch, 0, index, nTrue, nFalse);
+    return nTrue;
   }
 
   /** The function that recursively induces the tree (for induce)
@@ -172,78 +276,83 @@ public class BinID3 implements Serializable {
    *  @return the tree that correctly processes the samples in the partition using the features
    */
   public BinTree induceTree(int[] partition, int[] features) {
+    if (classOf==null)
+      buildColumns();
+    index=partition.clone();
+    scratch=new int[index.length];
+    return induceTree(0, index.length, features.clone(), features.length);
+  }
+
+  /** The function that recursively induces the tree, for the samples in a range of index, which it reorders
+   *  @param  from      the position of the first sample of the current set in index
+   *  @param  to        the position after the last sample of the current set in index
+   *  @param  features  an array holding the indices of the features that can be used, in its first nFeatures places
+   *                    (reordered while subtrees are induced, and restored)
+   *  @param  nFeatures the number of features that can be used
+   *  @return the tree that correctly processes the samples in the partition using the features
+   */
+  private BinTree induceTree(int from, int to, int[] features, int nFeatures) {
+    int n=to-from;
     // if the partition is empty, we can not return a tree
-    if (partition.length==0) {
+    if (n==0) {
       return null;
     }
     // check if all entries in partition belong to the same class. If so, return node, labeled with class value
     // you may want to check if pruning is applicable here (and then just return the majority class).
     int[] classCnt=new int[classes.length];
-    String sameValue=null;
+    // the test for a majority class has always counted the samples up to the first sample of another class
+    int[] leadCnt=new int[classes.length];
+    int sameValue=classOf[index[from]];
     boolean sameClass=true;
-    for (int p=0; p<partition.length; p++) {
-      String targetValue=output[partition[p]];
-      for (int n=0; n<classes.length; n++) {
-        if (targetValue.equals(classes[n])) {
-          classCnt[n]++;
-          break;
-        }
-      }
-      if (p==0)
-        sameValue=targetValue;
-      else {
-        if (!sameValue.equalsIgnoreCase(targetValue)) {
-          sameClass=false;
-          break;
-        }
+    for (int p=from; p<to; p++) {
+      int c=classOf[index[p]];
+      if (c>=0) {
+        classCnt[c]++;
+        if (sameClass)
+          leadCnt[c]++;
       }
+      if (c!=sameValue)
+        sameClass=false;
     }
     if (sameClass)  {
-      return new BinTree(sameValue);
+      return new BinTree(output[index[from]]);
     } else {
       int max=0;
-      for (int n=1; n<classes.length; n++)
-        if (classCnt[max]<classCnt[n])
-          max=n;
-      if ((double)classCnt[max]/(double)partition.length>0.50 || partition.length<5) { // if more than 50% of samples in partition are of the same class OR fewer than 5 samples
+      for (int c=1; c<classes.length; c++)
+        if (leadCnt[max]<leadCnt[c])
+          max=c;
+      if ((double)leadCnt[max]/(double)n>0.50 || n<5) { // if more than 50% of samples in partition are of the same class OR fewer than 5 samples
         System.out.print(".");
         return new BinTree(classes[max]);
       }
     }
 
     // if no features are available, we can not return a tree
-    if (features.length==0) {
+    if (nFeatures==0) {
       return null;
     }
 
     // class values are not equal so we select a particular feature to split the partition
-    int selectedFeature=selectFeature(partition, features);
+    int selected=selectFeature(from, to, features, nFeatures, classCnt);
+    int selectedFeature=features[selected];
 
-    // create new partition of samples
-    // use only corresponding subset of full partition
-    int[] partTrue=matches(partition, selectedFeature, true);
-    int[] partFalse=matches(partition, selectedFeature, false);
-    // remove the feature from the new set (to be sent to subtrees)
-    int[] nextFeatures=new int[features.length-1];
-    int cnt=0;
-    for (int f=0; f<features.length; f++) {
-      if (features[f]!=selectedFeature)
-        nextFeatures[cnt++]=features[f];
-    }
+    // split the partition in place: the samples with the feature true come first
+    int split=partition(from, to, selectedFeature);
+    // remove the feature from the set sent to subtrees, keeping the order of the others
+    System.arraycopy(features, selected+1, features, selected, nFeatures-selected-1);
     // construct the subtrees using the new partitions and reduced set of features
-    BinTree branchTrue=induceTree(partTrue, nextFeatures);
-    BinTree branchFalse=induceTree(partFalse, nextFeatures);
+    BinTree branchTrue=induceTree(from, split, features, nFeatures-1);
+    BinTree branchFalse=induceTree(split, to, features, nFeatures-1);
+    System.arraycopy(features, selected, features, selected+1, nFeatures-selected-1);
+    features[selected]=selectedFeature;
 
     // if either of the subtrees failed, we have confronted a problem, use the most likely class value of the current partition
     BinTree defaultTree=null;
     if (branchTrue==null || branchFalse==null) {
       // indicate a majority vote
-      int[] freq=new int[classes.length];
       int most=0;
       for (int c=0; c<classes.length; c++) {
-        int[] pos = matches(partition, classes[c]);
-        freq[c] = pos.length;
-        if (freq[c]>=freq[most])
+        if (classCnt[c]>=classCnt[most])
           most=c;
       }
       // the majority class value can replace any null trees...
@@ -270,15 +379,17 @@ public class BinID3 implements Serializable {
    */
   public BinTree induce() {
     // the initial partition contains all the samples available to us
-    int[] entries=new int[input.length];
-    for (int i=0; i<entries.length; i++)
-      entries[i]=i;
+    buildColumns();
+    index=new int[samples.length];
+    for (int i=0; i<index.length; i++)
+      index[i]=i;
+    scratch=new int[samples.length];
     // the initial features include all available
     int[] features=new int[label.length];
     for (int i=0; i<features.length; i++)
       features[i]=i;
     // ok, let's get the show on the road
-    return induceTree(entries, features);
+    return induceTree(0, index.length, features, features.length);
   }
 
 }
@@ -10,6 +10,7 @@ import java.io.*;
  */
 
 public class BinTree implements Serializable {
+  private static final long serialVersionUID = 3871354621485889706L; // keep models saved by earlier versions loadable
   public BinTree[] subtrees=null;
   public String label=null;
   public String classValue=null;
@@ -52,4 +53,21 @@ public class BinTree implements Serializable {
      } else
        return classValue;
    }
+
+  /** Determine the classification of a tuple, reading the feature values in place
+   * @param labels an array holding the labels of the features
+   * @param value a view of all the values of the sample to be classified according to the tree (same order as the labels above)
+   * @return the classification label found at the node identified by this sample
+   */
+   public String getClassification(String[] labels, FeatureView value) {
+     if (subtrees!=null) {
+       for (int f=0; f<labels.length; f++) {
+         if (label.equals(labels[f])) {
+           return subtrees[value.isSet(f)?0:1].getClassification(labels, value);
+         }
+       }
+       return null;
+     } else
+       return classValue;
+   }
  }
@@ -0,0 +1,348 @@
+package machl;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * <p>A single-hidden layer network like NN1 with a compressed hidden layer, made from a trained NN1.</p>
+ * The weights of the hidden layer, wh, are optionally factorized into the product U*V of a hidden-by-rank matrix U
+ * and a rank-by-input matrix V (the best approximation of that rank, from the eigenvectors of wh*wh'). The input
+ * side matrix (wh, or V) is then pruned: only the given fraction of its weights with the largest magnitudes is kept,
+ * in compressed sparse rows (CSR). A pass through the network only multiplies the kept weights, plus rank values per
+ * hidden node with factorization. The weights of the hidden layer are kept in float, the others in double.
+ * The network can be trained further (fine-tuned) one pattern at a time; the pruned weights stay 0.
+ * The weights are only read while the output is computed, so threads that each use their own Workspace can
+ * compute outputs at the same time.
+ */
+
+public class CompressedNN1 implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private int nInput, nHidden, nOutput;
+  private int rank;       // the number of rows of V (0 if wh is not factorized)
+  int[] rowStart;         // the index in column and value of the first kept weight of each row [row], and the end
+  int[] column;           // the input of each kept weight
+  float[] value;          // the value of each kept weight
+  float[] u;              // the factor U [hidden node*rank+row of V] (null if wh is not factorized)
+  double[][] w;           // the weight values of the output nodes [to node][from node]
+  double[] bias;          // the bias values for nodes
+  double[] biash;         // the bias values for hidden nodes
+  boolean softmax;        // the output nodes are normalized by softmax, as in NN1
+  Activation activation;  // how the logistic function is computed, as in NN1
+  private transient Workspace workspace;  // the workspace of the methods without one
+
+  /** The input, node values and errors while a pattern is presented to the network.
+   */
+  public static class Workspace {
+    double[] x;           // the input values, also those that are 0
+    double[] t;           // the values of the rows of the sparse matrix (V*x, or wh*x)
+    double[] h, o, error, errorh, errort;
+
+    Workspace(int nInput, int nRows, int nHidden, int nOutput) {
+      x=new double[nInput];
+      t=new double[nRows];
+      h=new double[nHidden];
+      o=new double[nOutput];
+      error=new double[nOutput];
+      errorh=new double[nHidden];
+      errort=new double[nRows];
+    }
+  }
+
+  /** Constructs a compressed network from the weights of a NN1.
+   *  @param  nn       The trained network.
+   *  @param  density  The fraction of the weights of the input side matrix that is kept (1 keeps all).
+   *  @param  rank     The rank of the factorization of wh (0, or at least the number of hidden nodes, for none).
+   */
+  public CompressedNN1(NN1 nn, double density, int rank) {
+    nOutput=nn.w.length;
+    nHidden=nn.wh.length;
+    nInput=nHidden>0?nn.wh[0].length:0;
+    w=new double[nOutput][];
+    for (int k=0; k<nOutput; k++)
+      w[k]=nn.w[k].clone();
+    bias=nn.bias.clone();
+    biash=nn.biash.clone();
+    softmax=nn.softmax;
+    activation=nn.getActivation();
+
+    double[][] m=nn.wh;
+    if (rank>0 && rank<nHidden) {
+      this.rank=rank;
+      double[][] q=topEigenvectors(nn.wh, rank);
+      u=new float[nHidden*rank];
+      for (int h=0; h<nHidden; h++)
+        for (int i=0; i<rank; i++)
+          u[h*rank+i]=(float)q[h][i];
+      // V = Q'*wh, so that U*V = Q*Q'*wh is the projection of wh onto the eigenvectors
+      m=new double[rank][nInput];
+      for (int i=0; i<rank; i++)
+        for (int h=0; h<nHidden; h++) {
+          double qhi=q[h][i];
+          double[] whh=nn.wh[h], mi=m[i];
+          for (int j=0; j<nInput; j++)
+            mi[j]+=qhi*whh[j];
+        }
+    }
+    prune(m, density);
+  }
+
+  /** Keeps the weights of a matrix with the largest magnitudes, in compressed sparse rows.
+   */
+  private void prune(double[][] m, double density) {
+    int size=m.length*nInput;
+    int keep=(int)Math.min(size, Math.round(Math.max(0, density)*size));
+    double threshold=Double.POSITIVE_INFINITY;
+    if (keep>=size)
+      threshold=0;
+    else if (keep>0) {
+      double[] magnitudes=new double[size];
+      for (int i=0; i<m.length; i++)
+        for (int j=0; j<nInput; j++)
+          magnitudes[i*nInput+j]=Math.abs(m[i][j]);
+      Arrays.sort(magnitudes);
+      threshold=magnitudes[size-keep];
+    }
+    rowStart=new int[m.length+1];
+    int count=0;
+    for (int i=0; i<m.length; i++)
+      for (int j=0; j<nInput; j++)
+        if (Math.abs(m[i][j])>=threshold && (m[i][j]!=0 || keep>=size))
+          count++;
+    column=new int[count];
+    value=new float[count];
+    count=0;
+    for (int i=0; i<m.length; i++) {
+      rowStart[i]=count;
+      for (int j=0; j<nInput; j++) {
+        if (Math.abs(m[i][j])>=threshold && (m[i][j]!=0 || keep>=size)) {
+          column[count]=j;
+          value[count++]=(float)m[i][j];
+        }
+      }
+    }
+    rowStart[m.length]=count;
+  }
+
+  /** Computes the eigenvectors of a*a' with the largest eigenvalues (the left singular vectors of a), by the
+   *  cyclic Jacobi method on the (small) square matrix a*a'.
+   *  @return double[][]  the eigenvectors as columns [row of a][eigenvector]
+   */
+  private static double[][] topEigenvectors(double[][] a, int n) {
+    int size=a.length;
+    double[][] g=new double[size][size];
+    for (int p=0; p<size; p++)
+      for (int q=p; q<size; q++) {
+        double sum=0;
+        for (int j=0; j<a[p].length; j++)
+          sum+=a[p][j]*a[q][j];
+        g[p][q]=g[q][p]=sum;
+      }
+    double[][] v=new double[size][size];
+    for (int p=0; p<size; p++)
+      v[p][p]=1;
+    for (int sweep=0; sweep<100; sweep++) {
+      double off=0, diagonal=0;
+      for (int p=0; p<size; p++) {
+        diagonal+=g[p][p]*g[p][p];
+        for (int q=p+1; q<size; q++)
+          off+=g[p][q]*g[p][q];
+      }
+      if (off<=1e-24*diagonal)
+        break;
+      for (int p=0; p<size; p++) {
+        for (int q=p+1; q<size; q++) {
+          if (g[p][q]==0)
+            continue;
+          // rotate rows and columns p and q so that g[p][q] becomes 0
+          double theta=(g[q][q]-g[p][p])/(2*g[p][q]);
+          double t=Math.signum(theta)/(Math.abs(theta)+Math.sqrt(theta*theta+1));
+          if (theta==0)
+            t=1;
+          double c=1/Math.sqrt(t*t+1), s=t*c;
+          for (int k=0; k<size; k++) {
+            double gkp=g[k][p], gkq=g[k][q];
+            g[k][p]=c*gkp-s*gkq;
+            g[k][q]=s*gkp+c*gkq;
+          }
+          for (int k=0; k<size; k++) {
+            double gpk=g[p][k], gqk=g[q][k];
+            g[p][k]=c*gpk-s*gqk;
+            g[q][k]=s*gpk+c*gqk;
+          }
+          for (int k=0; k<size; k++) {
+            double vkp=v[k][p], vkq=v[k][q];
+            v[k][p]=c*vkp-s*vkq;
+            v[k][q]=s*vkp+c*vkq;
+          }
+        }
+      }
+    }
+    // pick the eigenvectors of the n largest eigenvalues
+    Integer[] order=new Integer[size];
+    for (int p=0; p<size; p++)
+      order[p]=p;
+    final double[][] eigen=g;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer x, Integer y) {
+        return Double.compare(eigen[y][y], eigen[x][x]);
+      }
+    });
+    double[][] top=new double[size][n];
+    for (int i=0; i<n; i++)
+      for (int k=0; k<size; k++)
+        top[k][i]=v[k][order[i]];
+    return top;
+  }
+
+  /** Determine the number of multiply-adds of a pass through the network.
+   *  @return long  the number of multiply-adds
+   */
+  public long getMultiplyAdds() {
+    return (long)value.length+(long)nHidden*rank+(long)nOutput*nHidden;
+  }
+
+  /** Determine the number of multiply-adds of a pass through the network before it was compressed.
+   *  @return long  the number of multiply-adds
+   */
+  public long getDenseMultiplyAdds() {
+    return (long)nInput*nHidden+(long)nOutput*nHidden;
+  }
+
+  /** Determine the number of weights kept in the sparse rows.
+   *  @return int  the number of weights
+   */
+  public int getNonZeroCount() {
+    return value.length;
+  }
+
+  /** Creates a workspace for presenting patterns to this network, e.g. by another thread.
+   *  @return Workspace  a new workspace
+   */
+  public Workspace newWorkspace() {
+    return new Workspace(nInput, rowStart.length-1, nHidden, nOutput);
+  }
+
+  private Workspace workspace() {
+    if (workspace==null)
+      workspace=newWorkspace();
+    return workspace;
+  }
+
+  /** Computes the output values of the output nodes in the network given input values.
+   *  @param  x  The input values.
+   *  @return double[]    The vector of computed output values
+   */
+  public double[] feedforward(FeatureView x) {
+    return feedforward(x, workspace());
+  }
+
+  /** Computes the output values of the output nodes in the network given input values.
+   *  @param  x  The input values.
+   *  @param  ws The workspace which receives the node values.
+   *  @return double[]    The vector of computed output values (held by the workspace)
+   */
+  public double[] feedforward(FeatureView x, Workspace ws) {
+    double[] xd=ws.x, t=ws.t, h=ws.h, o=ws.o;
+    // the sparse rows look up their inputs, so the inputs are spread out, also those that are 0
+    if (x instanceof SparseFeatures) {
+      SparseFeatures s=(SparseFeatures)x;
+      Arrays.fill(xd, 0.0);
+      for (int k=0; k<s.nonZero; k++)
+        xd[s.index[k]]=s.value[k];
+    } else {
+      int nx=Math.min(x.size(), nInput);
+      for (int j=0; j<nx; j++)
+        xd[j]=x.getValue(j);
+      Arrays.fill(xd, nx, nInput, 0.0);
+    }
+    for (int i=0; i<t.length; i++) {
+      double sum=0;
+      for (int k=rowStart[i]; k<rowStart[i+1]; k++)
+        sum+=value[k]*xd[column[k]];
+      t[i]=sum;
+    }
+    // compute the activation of each hidden node
+    for (int q=0; q<nHidden; q++) {
+      double sum;
+      if (u==null)
+        sum=t[q];
+      else {
+        sum=0;
+        for (int i=0, base=q*rank; i<rank; i++)
+          sum+=u[base+i]*t[i];
+      }
+      h[q]=activation.value(sum+biash[q]);
+    }
+    // compute the activation of each output node (depends on hidden values)
+    for (int k=0; k<nOutput; k++) {
+      double sum=0;
+      double[] wk=w[k];
+      for (int q=0; q<nHidden; q++)
+        sum+=h[q]*wk[q];
+      o[k]=softmax?sum+bias[k]:activation.value(sum+bias[k]);
+    }
+    if (softmax)
+      NN1.softmax(o, nOutput);
+    return o;
+  }
+
+  /** Adapts the kept weights of the network given the values that should appear at the output when the input
+   *  has been presented, by online error backpropagation (as NN1.train). Pruned weights stay 0.
+   *  @param  x  The input values.
+   *  @param  d  The desired output values.
+   *  @param  eta     The learning rate, always between 0 and 1, typically a small value, e.g. 0.1
+   *  @return double  An error value (the root-mean-squared-error).
+   */
+  public double train(FeatureView x, double[] d, double eta) {
+    Workspace ws=workspace();
+    feedforward(x, ws);
+    double[] xd=ws.x, t=ws.t, h=ws.h, o=ws.o, error=ws.error, errorh=ws.errorh;
+
+    // compute the error of output nodes, and the root-mean-squared-error
+    double rmse=0;
+    for (int k=0; k<nOutput; k++) {
+      double diff=d[k]-o[k];
+      error[k]=softmax?diff:diff*o[k]*(1-o[k]);
+      rmse+=diff*diff;
+    }
+    rmse=Math.sqrt(rmse/nOutput);
+
+    // compute the error of hidden nodes (before the weights of the output nodes change)
+    for (int q=0; q<nHidden; q++) {
+      double sum=0;
+      for (int k=0; k<nOutput; k++)
+        sum+=error[k]*w[k][q];
+      errorh[q]=sum*h[q]*(1-h[q]);
+    }
+
+    // change weights of the output nodes according to errors
+    for (int k=0; k<nOutput; k++) {
+      double[] wk=w[k];
+      for (int q=0; q<nHidden; q++)
+        wk[q]+=error[k]*h[q]*eta;
+      bias[k]+=error[k]*eta;
+    }
+
+    // the error of the sparse rows is that of the hidden nodes, passed back through U if wh is factorized
+    double[] errort=errorh;
+    if (u!=null) {
+      errort=ws.errort;
+      Arrays.fill(errort, 0.0);
+      for (int q=0; q<nHidden; q++) {
+        for (int i=0, base=q*rank; i<rank; i++) {
+          errort[i]+=errorh[q]*u[base+i];
+          u[base+i]+=(float)(errorh[q]*t[i]*eta);
+        }
+      }
+    }
+    for (int q=0; q<nHidden; q++)
+      biash[q]+=errorh[q]*eta;
+    for (int i=0; i<t.length; i++) {
+      double change=errort[i]*eta;
+      for (int k=rowStart[i]; k<rowStart[i+1]; k++)
+        value[k]+=(float)(change*xd[column[k]]);
+    }
+    return rmse;
+  }
+}
@@ -0,0 +1,492 @@
+package machl;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * <p>A small convolutional neural network for images, e.g. 32x32 letters, trained by online backpropagation.</p>
+ * The image passes through stages of a convolution (with rectified linear nodes, zero padding so that the image
+ * keeps its size) followed by 2x2 max pooling, then through an optional dense hidden layer of rectified linear
+ * nodes, and a dense output layer normalized by softmax and trained on cross-entropy error (as NN1 with softmax).
+ * A convolution is computed as one matrix product: the patches of the image under the filter are copied into the
+ * columns of a matrix (im2col), which the matrix of filter weights multiplies in cache-sized blocks. All node
+ * values, errors and patch matrices are kept in a Workspace, which is allocated once; the weights are only read
+ * while the output is computed, so threads that each use their own Workspace can compute outputs at the same time.
+ */
+
+public class ConvNet implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private static final int K_BLOCK=64;     // rows of the right matrix kept in cache while a block of columns is added
+  private static final int J_BLOCK=256;    // columns of the result kept in cache while the rows are added into them
+  private Layer[] layers;
+  private int nInput, nOutput;
+  private transient Workspace workspace;   // the workspace of the methods without one
+
+  /** The values and errors of the nodes of each layer while a pattern is presented to the network.
+   */
+  public static class Workspace {
+    double[][] a;         // the input [0] and the values of the nodes of each layer [l+1]
+    double[][] e;         // the errors of the same values
+    double[][] cols;      // the patch matrix of the input of each convolution (null for other layers)
+    double[][] ecols;     // the errors of the patch matrix
+    int[][] argmax;       // the input chosen by each node of each pooling layer (null for other layers)
+
+    Workspace(Layer[] layers, int nInput) {
+      int n=layers.length;
+      a=new double[n+1][];
+      e=new double[n+1][];
+      cols=new double[n][];
+      ecols=new double[n][];
+      argmax=new int[n][];
+      a[0]=new double[nInput];
+      e[0]=new double[nInput];
+      for (int l=0; l<n; l++) {
+        a[l+1]=new double[layers[l].outSize];
+        e[l+1]=new double[layers[l].outSize];
+        layers[l].allocate(this, l);
+      }
+    }
+  }
+
+  /** Constructs a convolutional network and initializes its weights to small random values.
+   *  @param  nRows   Number of rows of the images
+   *  @param  nCols   Number of columns of the images
+   *  @param  filters The number of filters of each convolution stage (each stage halves the rows and columns)
+   *  @param  kernel  The size of the (square) filters, an odd number
+   *  @param  nHidden The number of nodes of the dense hidden layer (0 for none)
+   *  @param  nOutput Number of output nodes
+   *  @param  seed    Seed for the random number generator used for initial weights.
+   */
+  public ConvNet(int nRows, int nCols, int[] filters, int kernel, int nHidden, int nOutput, long seed) {
+    Random rand=new Random(seed);
+    List<Layer> list=new ArrayList<Layer>();
+    int channels=1, rows=nRows, cols=nCols;
+    for (int f : filters) {
+      list.add(new Conv(channels, rows, cols, f, kernel, rand));
+      channels=f;
+      list.add(new Pool(channels, rows, cols));
+      rows/=2;
+      cols/=2;
+    }
+    int size=channels*rows*cols;
+    if (nHidden>0) {
+      list.add(new Dense(size, nHidden, true, rand));
+      size=nHidden;
+    }
+    list.add(new Dense(size, nOutput, false, rand));
+    layers=list.toArray(new Layer[list.size()]);
+    this.nInput=nRows*nCols;
+    this.nOutput=nOutput;
+  }
+
+  /** Creates a workspace for presenting patterns to this network, e.g. by another thread.
+   *  @return Workspace  a new workspace
+   */
+  public Workspace newWorkspace() {
+    return new Workspace(layers, nInput);
+  }
+
+  private Workspace workspace() {
+    if (workspace==null)
+      workspace=newWorkspace();
+    return workspace;
+  }
+
+  /** Determine the number of weights and biases of the network.
+   *  @return int  the number of parameters
+   */
+  public int getParameterCount() {
+    int n=0;
+    for (Layer layer : layers)
+      n+=layer.getParameterCount();
+    return n;
+  }
+
+  /** Computes the output values of the output nodes in the network given input values.
+   *  @param  x  The input values (the pixels of the image, row by row).
+   *  @return double[]    The vector of computed output values
+   */
+  public double[] feedforward(FeatureView x) {
+    return feedforward(x, workspace());
+  }
+
+  /** Computes the output values of the output nodes in the network given input values.
+   *  @param  x  The input values (the pixels of the image, row by row).
+   *  @param  ws The workspace which receives the node values.
+   *  @return double[]    The vector of computed output values (held by the workspace)
+   */
+  public double[] feedforward(FeatureView x, Workspace ws) {
+    if (x.size()!=nInput)
+      throw new IllegalArgumentException("Got "+x.size()+" inputs for a network of "+nInput);
+    double[] in=ws.a[0];
+    for (int j=0; j<nInput; j++)
+      in[j]=x.getValue(j);
+    for (int l=0; l<layers.length; l++)
+      layers[l].forward(ws, l);
+    double[] o=ws.a[layers.length];
+    NN1.softmax(o, nOutput);
+    return o;
+  }
+
+  /** Adapts weights in the network given the values that should appear at the output when the input has been
+   *  presented, by online error backpropagation.
+   *  @param  x  The input values.
+   *  @param  d  The desired output values.
+   *  @param  eta     The learning rate, typically a small value, e.g. 0.01
+   *  @return double  An error value (the root-mean-squared-error).
+   */
+  public double train(FeatureView x, double[] d, double eta) {
+    return train(x, d, eta, workspace());
+  }
+
+  /** Adapts weights in the network as train(FeatureView, double[], double), with the node values and errors
+   *  kept in the specified workspace.
+   *  @param  x  The input values.
+   *  @param  d  The desired output values.
+   *  @param  eta     The learning rate, typically a small value, e.g. 0.01
+   *  @param  ws      The workspace of the calling thread.
+   *  @return double  An error value (the root-mean-squared-error).
+   */
+  public double train(FeatureView x, double[] d, double eta, Workspace ws) {
+    double[] o=feedforward(x, ws);
+    double[] error=ws.e[layers.length];
+    // with softmax and cross-entropy the error of an output node is its target less its value
+    double rmse=0;
+    for (int k=0; k<nOutput; k++) {
+      error[k]=d[k]-o[k];
+      rmse+=error[k]*error[k];
+    }
+    for (int l=layers.length-1; l>=0; l--)
+      layers[l].backward(ws, l, eta, l>0);
+    return Math.sqrt(rmse/nOutput);
+  }
+
+  /** A layer of the network, which reads its input from the workspace at [l] and writes its output at [l+1].
+   */
+  static abstract class Layer implements Serializable {
+    private static final long serialVersionUID = 1L;
+    int inSize, outSize;
+
+    /** Allocates the buffers of the layer in a workspace, besides its input and output. */
+    void allocate(Workspace ws, int l) {
+    }
+
+    /** Computes the output of the layer from its input. */
+    abstract void forward(Workspace ws, int l);
+
+    /** Computes the errors of the input of the layer (if needed) from the errors of its output, and changes
+     *  the weights of the layer. */
+    abstract void backward(Workspace ws, int l, double eta, boolean inputError);
+
+    int getParameterCount() {
+      return 0;
+    }
+  }
+
+  /** A convolution of the channels of an image by filters of kernel x kernel, with rectified linear nodes.
+   */
+  static class Conv extends Layer {
+    private static final long serialVersionUID = 1L;
+    int channels, rows, cols, filters, kernel, pad;
+    int patch;            // the number of weights of a filter: channels*kernel*kernel
+    double[] w;           // the weights [filter*patch+(channel*kernel+row)*kernel+col]
+    double[] b;           // the bias of each filter
+
+    Conv(int channels, int rows, int cols, int filters, int kernel, Random rand) {
+      this.channels=channels;
+      this.rows=rows;
+      this.cols=cols;
+      this.filters=filters;
+      this.kernel=kernel;
+      pad=kernel/2;
+      patch=channels*kernel*kernel;
+      inSize=channels*rows*cols;
+      outSize=filters*rows*cols;
+      w=new double[filters*patch];
+      b=new double[filters];
+      double scale=Math.sqrt(2.0/patch);
+      for (int i=0; i<w.length; i++)
+        w[i]=rand.nextGaussian()*scale;
+    }
+
+    void allocate(Workspace ws, int l) {
+      ws.cols[l]=new double[patch*rows*cols];
+      ws.ecols[l]=new double[patch*rows*cols];
+    }
+
+    void forward(Workspace ws, int l) {
+      double[] in=ws.a[l], out=ws.a[l+1], c=ws.cols[l];
+      int area=rows*cols;
+      im2col(in, c);
+      for (int f=0; f<filters; f++)
+        Arrays.fill(out, f*area, (f+1)*area, b[f]);
+      multiply(filters, patch, area, w, c, out);
+      for (int i=0; i<outSize; i++)
+        if (out[i]<0)
+          out[i]=0;
+    }
+
+    void backward(Workspace ws, int l, double eta, boolean inputError) {
+      double[] out=ws.a[l+1], eout=ws.e[l+1], c=ws.cols[l];
+      int area=rows*cols;
+      for (int i=0; i<outSize; i++)
+        if (out[i]<=0)
+          eout[i]=0;
+      // the errors of the input are passed back through the weights before they change
+      if (inputError) {
+        double[] ec=ws.ecols[l];
+        Arrays.fill(ec, 0.0);
+        multiplyTransposedLeft(filters, patch, area, w, eout, ec);
+        col2im(ec, ws.e[l]);
+      }
+      multiplyTransposedRight(filters, area, patch, eout, c, w, eta);
+      for (int f=0; f<filters; f++) {
+        double sum=0;
+        for (int i=f*area; i<(f+1)*area; i++)
+          sum+=eout[i];
+        b[f]+=sum*eta;
+      }
+    }
+
+    /** Copies the patch under the filter at each position of the image into a column of c [patch][position].
+     */
+    private void im2col(double[] in, double[] c) {
+      int area=rows*cols;
+      for (int ch=0, r=0; ch<channels; ch++) {
+        for (int ky=0; ky<kernel; ky++) {
+          for (int kx=0; kx<kernel; kx++, r++) {
+            int base=r*area;
+            for (int y=0; y<rows; y++) {
+              int iy=y+ky-pad;
+              int row=base+y*cols;
+              if (iy<0 || iy>=rows) {
+                Arrays.fill(c, row, row+cols, 0.0);
+                continue;
+              }
+              int from=(ch*rows+iy)*cols+kx-pad;
+              for (int x=0; x<cols; x++) {
+                int ix=x+kx-pad;
+                c[row+x]=ix>=0 && ix<cols?in[from+x]:0.0;
+              }
+            }
+          }
+        }
+      }
+    }
+
+    /** Adds the errors of the columns of the patch matrix to the errors of the pixels they were copied from.
+     */
+    private void col2im(double[] c, double[] ein) {
+      Arrays.fill(ein, 0.0);
+      int area=rows*cols;
+      for (int ch=0, r=0; ch<channels; ch++) {
+        for (int ky=0; ky<kernel; ky++) {
+          for (int kx=0; kx<kernel; kx++, r++) {
+            int base=r*area;
+            for (int y=0; y<rows; y++) {
+              int iy=y+ky-pad;
+              if (iy<0 || iy>=rows)
+                continue;
+              int row=base+y*cols;
+              int from=(ch*rows+iy)*cols+kx-pad;
+              for (int x=Math.max(0, pad-kx); x<Math.min(cols, cols+pad-kx); x++)
+                ein[from+x]+=c[row+x];
+            }
+          }
+        }
+      }
+    }
+
+    int getParameterCount() {
+      return w.length+b.length;
+    }
+  }
+
+  /** Max pooling of each channel of an image over 2x2 squares.
+   */
+  static class Pool extends Layer {
+    private static final long serialVersionUID = 1L;
+    int channels, rows, cols;
+
+    Pool(int channels, int rows, int cols) {
+      this.channels=channels;
+      this.rows=rows;
+      this.cols=cols;
+      inSize=channels*rows*cols;
+      outSize=channels*(rows/2)*(cols/2);
+    }
+
+    void allocate(Workspace ws, int l) {
+      ws.argmax[l]=new int[outSize];
+    }
+
+    void forward(Workspace ws, int l) {
+      double[] in=ws.a[l], out=ws.a[l+1];
+      int[] argmax=ws.argmax[l];
+      int outRows=rows/2, outCols=cols/2;
+      for (int ch=0, o=0; ch<channels; ch++) {
+        for (int y=0; y<outRows; y++) {
+          for (int x=0; x<outCols; x++, o++) {
+            int i=(ch*rows+2*y)*cols+2*x;
+            int best=i;
+            if (in[i+1]>in[best])
+              best=i+1;
+            if (in[i+cols]>in[best])
+              best=i+cols;
+            if (in[i+cols+1]>in[best])
+              best=i+cols+1;
+            out[o]=in[best];
+            argmax[o]=best;
+          }
+        }
+      }
+    }
+
+    void backward(Workspace ws, int l, double eta, boolean inputError) {
+      if (!inputError)
+        return;
+      double[] ein=ws.e[l], eout=ws.e[l+1];
+      int[] argmax=ws.argmax[l];
+      Arrays.fill(ein, 0.0);
+      for (int o=0; o<outSize; o++)
+        ein[argmax[o]]+=eout[o];
+    }
+  }
+
+  /** A dense layer, with rectified linear nodes or (for the output) with the summed activations as values.
+   */
+  static class Dense extends Layer {
+    private static final long serialVersionUID = 1L;
+    boolean relu;
+    double[] w;           // the weights [to node*inSize+from node]
+    double[] b;           // the bias of each node
+
+    Dense(int inSize, int outSize, boolean relu, Random rand) {
+      this.inSize=inSize;
+      this.outSize=outSize;
+      this.relu=relu;
+      w=new double[outSize*inSize];
+      b=new double[outSize];
+      double scale=Math.sqrt((relu?2.0:1.0)/inSize);
+      for (int i=0; i<w.length; i++)
+        w[i]=rand.nextGaussian()*scale;
+    }
+
+    void forward(Workspace ws, int l) {
+      double[] in=ws.a[l], out=ws.a[l+1];
+      for (int o=0, base=0; o<outSize; o++, base+=inSize) {
+        double sum=b[o];
+        for (int i=0; i<inSize; i++)
+          sum+=w[base+i]*in[i];
+        out[o]=relu && sum<0?0:sum;
+      }
+    }
+
+    void backward(Workspace ws, int l, double eta, boolean inputError) {
+      double[] in=ws.a[l], out=ws.a[l+1], eout=ws.e[l+1], ein=ws.e[l];
+      if (relu)
+        for (int o=0; o<outSize; o++)
+          if (out[o]<=0)
+            eout[o]=0;
+      if (inputError) {
+        Arrays.fill(ein, 0.0);
+        for (int o=0, base=0; o<outSize; o++, base+=inSize) {
+          double eo=eout[o];
+          if (eo!=0)
+            for (int i=0; i<inSize; i++)
+              ein[i]+=w[base+i]*eo;
+        }
+      }
+      for (int o=0, base=0; o<outSize; o++, base+=inSize) {
+        double change=eout[o]*eta;
+        if (change==0)
+          continue;
+        for (int i=0; i<inSize; i++)
+          w[base+i]+=change*in[i];
+        b[o]+=change;
+      }
+    }
+
+    int getParameterCount() {
+      return w.length+b.length;
+    }
+  }
+
+  /** Computes c += a*b for a [m][n], b [n][p] and c [m][p], row by row in flat arrays.
+   *  The rows of b are taken K_BLOCK at a time and their columns J_BLOCK at a time, so that the block of b
+   *  stays in cache while it is added into every row of c.
+   */
+  static void multiply(int m, int n, int p, double[] a, double[] b, double[] c) {
+    for (int k0=0; k0<n; k0+=K_BLOCK) {
+      int k1=Math.min(k0+K_BLOCK, n);
+      for (int j0=0; j0<p; j0+=J_BLOCK) {
+        int j1=Math.min(j0+J_BLOCK, p);
+        for (int i=0; i<m; i++) {
+          int ci=i*p;
+          for (int k=k0; k<k1; k++) {
+            double aik=a[i*n+k];
+            if (aik==0)
+              continue;
+            int bk=k*p;
+            for (int j=j0; j<j1; j++)
+              c[ci+j]+=aik*b[bk+j];
+          }
+        }
+      }
+    }
+  }
+
+  /** Computes c += a'*b for a [m][n], b [m][p] and c [n][p], row by row in flat arrays.
+   *  The columns of b and c are taken J_BLOCK at a time, so that the block of c stays in cache while every row
+   *  of b is added into it.
+   */
+  static void multiplyTransposedLeft(int m, int n, int p, double[] a, double[] b, double[] c) {
+    for (int j0=0; j0<p; j0+=J_BLOCK) {
+      int j1=Math.min(j0+J_BLOCK, p);
+      for (int i=0; i<m; i++) {
+        int bi=i*p;
+        for (int k=0; k<n; k++) {
+          double aik=a[i*n+k];
+          if (aik==0)
+            continue;
+          int ck=k*p;
+          for (int j=j0; j<j1; j++)
+            c[ck+j]+=aik*b[bi+j];
+        }
+      }
+    }
+  }
+
+  /** Computes c += scale*a*b' for a [m][p], b [n][p] and c [m][n], row by row in flat arrays.
+   *  Each value of c is the dot product of a row of a and a row of b; four rows of b are taken at once, so that
+   *  every value of a that is loaded is used four times.
+   */
+  static void multiplyTransposedRight(int m, int p, int n, double[] a, double[] b, double[] c, double scale) {
+    for (int i=0; i<m; i++) {
+      int ai=i*p, ci=i*n;
+      int k=0;
+      for (; k+4<=n; k+=4) {
+        int b0=k*p, b1=b0+p, b2=b1+p, b3=b2+p;
+        double s0=0, s1=0, s2=0, s3=0;
+        for (int j=0; j<p; j++) {
+          double v=a[ai+j];
+          s0+=v*b[b0+j];
+          s1+=v*b[b1+j];
+          s2+=v*b[b2+j];
+          s3+=v*b[b3+j];
+        }
+        c[ci+k]+=s0*scale;
+        c[ci+k+1]+=s1*scale;
+        c[ci+k+2]+=s2*scale;
+        c[ci+k+3]+=s3*scale;
+      }
+      for (; k<n; k++) {
+        int bk=k*p;
+        double s=0;
+        for (int j=0; j<p; j++)
+          s+=a[ai+j]*b[bk+j];
+        c[ci+k]+=s*scale;
+      }
+    }
+  }
+}
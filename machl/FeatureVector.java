@@ -0,0 +1,40 @@
+package machl;
+
+import java.io.Serializable;
+
+/**
+ * <p>A FeatureView of values held in an array of doubles.</p>
+ */
+
+public class FeatureVector implements FeatureView, Serializable {
+  private static final long serialVersionUID = 1L;
+  private double[] values;
+
+  /**
+   * Create a view of the values (which are not copied)
+   * @param values the feature values
+   */
+  public FeatureVector(double[] values) {
+    this.values=values;
+  }
+
+  public int size() {
+    return values.length;
+  }
+
+  public double getValue(int index) {
+    return values[index];
+  }
+
+  public boolean isSet(int index) {
+    return values[index] > 0;
+  }
+
+  /**
+   * Get the values (not copied)
+   * @return the values
+   */
+  public double[] getValues() {
+    return values;
+  }
+}
@@ -0,0 +1,30 @@
+package machl;
+
+/**
+ * <p>A read-only view of the feature values of one sample. Learners read the values in place
+ * through this interface, so the owner of the data does not have to copy it into a new array
+ * for every presentation.</p>
+ */
+
+public interface FeatureView {
+
+  /**
+   * Determine the number of features in the sample
+   * @return the number of features
+   */
+  public int size();
+
+  /**
+   * Get the value of a feature
+   * @param index the index of the feature (0..size-1)
+   * @return the value of the feature
+   */
+  public double getValue(int index);
+
+  /**
+   * Get the value of a feature interpreted as a binary feature (on if the value is positive)
+   * @param index the index of the feature (0..size-1)
+   * @return true if the feature is on
+   */
+  public boolean isSet(int index);
+}
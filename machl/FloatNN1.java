@@ -0,0 +1,252 @@
+package machl;
+
+import java.io.Serializable;
+
+/**
+ * <p>A single-hidden layer feedforward neural network like NN1, which keeps its weights as floats in one
+ * contiguous array per layer (row by row) and computes in float.</p>
+ * The weights take half the memory of NN1 and a pass through the network reads them sequentially, instead of
+ * following a pointer per row. A FloatNN1 is made from a NN1 (e.g. one loaded from a file), and can be
+ * turned back into one. The weights are only read while the output is computed, so threads that each use their
+ * own Workspace can compute outputs at the same time.
+ */
+
+public class FloatNN1 implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private int nInput, nHidden, nOutput;
+  float[] w;            // the trainable weight values [to node*nHidden+from node]
+  float[] wh;           // the trainable weight values for the hidden layer [to node*nInput+from input]
+  float[] bias;         // the trainable bias values for nodes
+  float[] biash;        // the trainable bias values for hidden nodes
+  boolean softmax;      // the output nodes are normalized by softmax, as in NN1
+  Activation activation;  // how the logistic function is computed, as in NN1 (null in models saved before: exactly)
+  private transient Workspace workspace;  // the workspace of the methods without one
+
+  /** The input, node values and errors while a pattern is presented to the network.
+   */
+  public static class Workspace {
+    float[] x, h, o, error, errorh;
+    int nx;               // the number of input values of the current pattern
+    double[] out;         // the output values as returned by feedforward
+
+    Workspace(int nInput, int nHidden, int nOutput) {
+      x=new float[nInput];
+      h=new float[nHidden];
+      o=new float[nOutput];
+      error=new float[nOutput];
+      errorh=new float[nHidden];
+      out=new double[nOutput];
+    }
+  }
+
+  /** Constructs a network with the weights of a NN1, rounded to floats.
+   *  @param  nn  The network with double weights.
+   */
+  public FloatNN1(NN1 nn) {
+    nOutput=nn.w.length;
+    nHidden=nn.wh.length;
+    nInput=nHidden>0?nn.wh[0].length:0;
+    w=new float[nOutput*nHidden];
+    wh=new float[nHidden*nInput];
+    bias=new float[nOutput];
+    biash=new float[nHidden];
+    for (int k=0; k<nOutput; k++) {
+      for (int q=0; q<nHidden; q++)
+        w[k*nHidden+q]=(float)nn.w[k][q];
+      bias[k]=(float)nn.bias[k];
+    }
+    for (int q=0; q<nHidden; q++) {
+      for (int j=0; j<nInput; j++)
+        wh[q*nInput+j]=(float)nn.wh[q][j];
+      biash[q]=(float)nn.biash[q];
+    }
+    softmax=nn.softmax;
+    activation=nn.getActivation();
+  }
+
+  /** Copies the weights into a NN1 of the same size.
+   *  @param  nn  The network which receives the weights.
+   */
+  public void copyTo(NN1 nn) {
+    if (nn.w.length!=nOutput || nn.wh.length!=nHidden || (nHidden>0 && nn.wh[0].length!=nInput))
+      throw new IllegalArgumentException("The networks differ in size");
+    for (int k=0; k<nOutput; k++) {
+      for (int q=0; q<nHidden; q++)
+        nn.w[k][q]=w[k*nHidden+q];
+      nn.bias[k]=bias[k];
+    }
+    for (int q=0; q<nHidden; q++) {
+      for (int j=0; j<nInput; j++)
+        nn.wh[q][j]=wh[q*nInput+j];
+      nn.biash[q]=biash[q];
+    }
+    nn.softmax=softmax;
+    nn.activation=activation;
+  }
+
+  /** Constructs a NN1 with the weights of this network.
+   *  @return NN1  The network with double weights.
+   */
+  public NN1 toNN1() {
+    NN1 nn=new NN1(nInput, nHidden, nOutput, 0);
+    copyTo(nn);
+    return nn;
+  }
+
+  /** Creates a workspace for presenting patterns to this network, e.g. by another thread.
+   *  @return Workspace  a new workspace
+   */
+  public Workspace newWorkspace() {
+    return new Workspace(nInput, nHidden, nOutput);
+  }
+
+  private Workspace workspace() {
+    if (workspace==null)
+      workspace=newWorkspace();
+    return workspace;
+  }
+
+  /** The logistic output function, computed as in the NN1 it was made from.
+   *  @param  net The summed incoming activation
+   *  @return float
+   */
+  private float outputFunction(float net) {
+    return (float)(activation==null?1.0/(1.0+Math.exp(-net)):activation.value(net));
+  }
+
+  /** Computes the output values of the output nodes in the network given input values.
+   *  @param  x  The input values.
+   *  @return double[]    The vector of computed output values
+   */
+  public double[] feedforward(FeatureView x) {
+    return feedforward(x, workspace());
+  }
+
+  /** Computes the output values of the output nodes in the network given input values.
+   *  @param  x  The input values.
+   *  @param  ws The workspace which receives the node values.
+   *  @return double[]    The vector of computed output values (held by the workspace)
+   */
+  public double[] feedforward(FeatureView x, Workspace ws) {
+    float[] h=ws.h, o=ws.o;
+    if (x instanceof SparseFeatures)
+      feedforward((SparseFeatures)x, h);
+    else {
+      // as in NN1, the input may have fewer values than the network has input nodes
+      int nx=ws.nx=x.size();
+      if (ws.x.length<nx)
+        ws.x=new float[nx];
+      float[] xf=ws.x;
+      for (int j=0; j<nx; j++)
+        xf[j]=(float)x.getValue(j);
+      // compute the activation of each hidden node (depends on input values)
+      for (int q=0, base=0; q<nHidden; q++, base+=nInput) {
+        float sum=0;
+        for (int j=0; j<nx; j++)
+          sum+=xf[j]*wh[base+j];
+        h[q]=outputFunction(sum+biash[q]);
+      }
+    }
+    // compute the activation of each output node (depends on hidden values)
+    for (int k=0, base=0; k<nOutput; k++, base+=nHidden) {
+      float sum=0;
+      for (int q=0; q<nHidden; q++)
+        sum+=h[q]*w[base+q];
+      o[k]=softmax?sum+bias[k]:outputFunction(sum+bias[k]);
+      ws.out[k]=o[k];
+    }
+    if (softmax) {
+      NN1.softmax(ws.out, nOutput);
+      for (int k=0; k<nOutput; k++)
+        o[k]=(float)ws.out[k];
+    }
+    return ws.out;
+  }
+
+  private void feedforward(SparseFeatures x, float[] h) {
+    int[] index=x.index;
+    double[] value=x.value;
+    int nonZero=x.nonZero;
+    for (int q=0, base=0; q<nHidden; q++, base+=nInput) {
+      float sum=0;
+      for (int k=0; k<nonZero; k++)
+        sum+=(float)value[k]*wh[base+index[k]];
+      h[q]=outputFunction(sum+biash[q]);
+    }
+  }
+
+  /**
+   * Computes the RMS error between actual outputs after feeding through x,
+   * compared to desired outputs d.  Does not modify weights.
+   */
+  public double error(FeatureView x, double[] d) {
+    Workspace ws=workspace();
+    feedforward(x, ws);
+    float[] o=ws.o;
+    double rmse=0;
+    for (int k=0; k<nOutput; k++) {
+      double diff=d[k]-o[k];
+      rmse+=diff*diff;
+    }
+    return Math.sqrt(rmse/nOutput);
+  }
+
+  /** Adapts weights in the network given the specification of which values that should appear at the output
+   *  when the input has been presented, by online error backpropagation in float (as NN1.train).
+   *  @param  x  The input values.
+   *  @param  d  The desired output values.
+   *  @param  eta     The learning rate, always between 0 and 1, typically a small value, e.g. 0.1
+   *  @return double  An error value (the root-mean-squared-error).
+   */
+  public double train(FeatureView x, double[] d, double eta) {
+    Workspace ws=workspace();
+    feedforward(x, ws);
+    float[] h=ws.h, o=ws.o, error=ws.error, errorh=ws.errorh;
+    float rate=(float)eta;
+
+    // compute the error of output nodes, and the root-mean-squared-error
+    double rmse=0;
+    for (int k=0; k<nOutput; k++) {
+      float diff=(float)d[k]-o[k];
+      error[k]=softmax?diff:diff*o[k]*(1-o[k]);
+      rmse+=diff*diff;
+    }
+    rmse=Math.sqrt(rmse/nOutput);
+
+    // compute the error of hidden nodes (before the weights of the output nodes change)
+    for (int q=0; q<nHidden; q++) {
+      float sum=0;
+      for (int k=0; k<nOutput; k++)
+        sum+=error[k]*w[k*nHidden+q];
+      errorh[q]=sum*h[q]*(1-h[q]);
+    }
+
+    // change weights of the output nodes according to errors
+    for (int k=0, base=0; k<nOutput; k++, base+=nHidden) {
+      float change=error[k]*rate;
+      for (int q=0; q<nHidden; q++)
+        w[base+q]+=change*h[q];
+      bias[k]+=change;
+    }
+
+    // change weights of the hidden nodes according to errors
+    if (x instanceof SparseFeatures) {
+      SparseFeatures s=(SparseFeatures)x;
+      for (int q=0, base=0; q<nHidden; q++, base+=nInput) {
+        float change=errorh[q]*rate;
+        for (int k=0; k<s.nonZero; k++)
+          wh[base+s.index[k]]+=change*(float)s.value[k];
+        biash[q]+=change;
+      }
+    } else {
+      float[] xf=ws.x;
+      for (int q=0, base=0; q<nHidden; q++, base+=nInput) {
+        float change=errorh[q]*rate;
+        for (int j=0; j<ws.nx; j++)
+          wh[base+j]+=change*xf[j];
+        biash[q]+=change;
+      }
+    }
+    return rmse;
+  }
+}
@@ -0,0 +1,46 @@
+package machl;
+
+/**
+ * <p>Gradient descent with momentum: each weight moves by a velocity, which is the gradient times the learning
+ * rate plus a fraction (the momentum) of the previous velocity.</p>
+ * With Nesterov's accelerated gradient, the weights move as if the gradient had been taken after the velocity
+ * was applied, which is done by moving by (1+momentum) times the new velocity less momentum times the old.
+ */
+
+public class Momentum extends Optimizer {
+  private static final long serialVersionUID = 1L;
+  private double momentum;
+  private boolean nesterov;
+  private double[][] v;     // the velocity of each weight, as rows (see Optimizer.newState)
+
+  /**
+   * Create a momentum optimizer
+   * @param momentum the fraction of the previous velocity that is kept, e.g. 0.9
+   * @param nesterov true for Nesterov's accelerated gradient
+   */
+  public Momentum(double momentum, boolean nesterov) {
+    this.momentum=momentum;
+    this.nesterov=nesterov;
+  }
+
+  protected void init(NN1 nn) {
+    v=newState(nn);
+  }
+
+  protected void step(double[] p, double[] g, int row, double eta) {
+    double[] vr=v[row];
+    double mu=momentum;
+    if (nesterov) {
+      for (int j=0; j<p.length; j++) {
+        double previous=vr[j];
+        vr[j]=mu*previous+eta*g[j];
+        p[j]+=(1+mu)*vr[j]-mu*previous;
+      }
+    } else {
+      for (int j=0; j<p.length; j++) {
+        vr[j]=mu*vr[j]+eta*g[j];
+        p[j]+=vr[j];
+      }
+    }
+  }
+}
@@ -4,21 +4,22 @@ import java.io.Serializable;
 
 /**
  * <p>A basic implementation of a single-layered feedforward neural network and backpropagation learning.</p>
+ * The node values of a presentation are kept in a Workspace, apart from the weights. Computing outputs only
+ * reads the weights, so threads that each pass their own Workspace can use the same network at the same time.
+ * The methods without a Workspace share the one that holds o and h, and are not safe to call concurrently.
  * @author Mikael Boden
  * @version 1.0
  */
 
 
 /* Here's a list of things one can do:
- *  1. implement batched (epoch-based) weight update
- *  2. add "momentum" to weight adjustments
- *  3. enable more node layers (hidden layers).
- *  4. try alternative output functions (e.g. hyperbolic tangens, or softmax)
- *  5. try alternative error measures for gradient calculations (maximum likelihood)
- *  6. after a hidden layer has been added, a simple recurrent network can be constructed (see Elman, 1990)
+ *  1. enable more node layers (hidden layers).
+ *  2. try alternative output functions (e.g. hyperbolic tangens)
+ *  3. after a hidden layer has been added, a simple recurrent network can be constructed (see Elman, 1990)
  */
 
 public class NN1 implements Serializable {
+  private static final long serialVersionUID = -7042309356126293911L; // keep models saved by earlier versions loadable
   double[] o;             // the values produced by each node (indices important, see weights/biases)
   double[] h;             // the values produced by each hidden node (indices important, see weights/biases)
   public double[][] w;    // the trainable weight values [to node][from node]
@@ -26,6 +27,34 @@ public class NN1 implements Serializable {
   public double[] bias;   // the trainable bias values for nodes
   public double[] biash;  // the trainable bias values for hidden nodes
   Random rand;            // a random number generator for initial weight values
+  Optimizer optimizer;    // how the weights change by their gradients (null: by the gradient times eta)
+  boolean softmax;        // the output nodes are normalized by softmax and trained on cross-entropy error
+  Activation activation;  // how the logistic function is computed (null in models saved before: exactly)
+
+  private static final int ROW_BLOCK=16;      // weight rows kept in cache while a batch passes through them
+  private static final int COLUMN_BLOCK=512;  // weight columns kept in cache while a batch is accumulated into them
+  private transient Workspace workspace;      // the workspace of the methods without one, which holds o and h
+
+  /** The values and errors of the nodes while a pattern (or batch of patterns) is presented to the network.
+   *  Threads that present patterns to the same network at the same time need a workspace each;
+   *  they share the weights, which are changed without locking (so called Hogwild training).
+   */
+  public static class Workspace {
+    double[] o;           // the values produced by each node
+    double[] h;           // the values produced by each hidden node
+    double[] error;       // the error of each node
+    double[] errorh;      // the error of each hidden node
+    // buffers used by trainBatch [pattern][node]: inputs, hidden and output values, output and hidden errors
+    double[][] bx, bh, bo, bdo, bdh;
+    Gradient gradient;    // the gradient that is passed to the optimizer, if any
+
+    Workspace(double[] o, double[] h) {
+      this.o=o;
+      this.h=h;
+      error=new double[o.length];
+      errorh=new double[h.length];
+    }
+  }
 
   /** Constructs a single-hidden layer neural network structure and initializes weights to
    *  small random values.
@@ -45,6 +74,8 @@ public class NN1 implements Serializable {
     bias=new double[nOutput];
     biash=new double[nHidden];
 
+    activation=Activation.EXACT;
+
     // initialize weight and bias values
     rand=new Random(seed);
     for (int q=0; q<nHidden; q++) {
@@ -61,14 +92,117 @@ public class NN1 implements Serializable {
     }
   }
 
+  /** Copies the weights and biases (and the choice of output function) into a NN1 of the same size,
+   *  e.g. to keep a snapshot of the network while it is trained further.
+   *  @param  nn  The network which receives the weights.
+   */
+  public void copyTo(NN1 nn) {
+    if (nn.w.length!=w.length || nn.wh.length!=wh.length || (wh.length>0 && nn.wh[0].length!=wh[0].length))
+      throw new IllegalArgumentException("The networks differ in size");
+    for (int k=0; k<w.length; k++)
+      System.arraycopy(w[k], 0, nn.w[k], 0, w[k].length);
+    for (int q=0; q<wh.length; q++)
+      System.arraycopy(wh[q], 0, nn.wh[q], 0, wh[q].length);
+    System.arraycopy(bias, 0, nn.bias, 0, bias.length);
+    System.arraycopy(biash, 0, nn.biash, 0, biash.length);
+    nn.softmax=softmax;
+    nn.activation=activation;
+  }
+
+  /** Creates a workspace for presenting patterns to this network, e.g. by another thread.
+   *  @return Workspace  a new workspace
+   */
+  public Workspace newWorkspace() {
+    return new Workspace(new double[o.length], new double[h.length]);
+  }
+
+  private Workspace workspace() {
+    if (workspace==null)
+      workspace=new Workspace(o, h);
+    return workspace;
+  }
+
+  /** Choose how the weights change by their gradients, e.g. with momentum. The optimizer allocates its state for
+   *  this network now, so that training allocates nothing; an optimizer can only be used by one network.
+   *  @param  optimizer  The optimizer, or null to change each weight by its gradient times the learning rate.
+   */
+  public void setOptimizer(Optimizer optimizer) {
+    if (optimizer!=null)
+      optimizer.init(this);
+    this.optimizer=optimizer;
+  }
+
+  /** Determine how the weights change by their gradients.
+   *  @return Optimizer  the optimizer, or null if each weight changes by its gradient times the learning rate.
+   */
+  public Optimizer getOptimizer() {
+    return optimizer;
+  }
+
+  /** Choose the output nodes: logistic nodes trained on squared error (the default), or nodes normalized by
+   *  softmax, so that the outputs add up to 1, trained on cross-entropy error. With softmax the error of an output
+   *  node is simply its target less its value.
+   *  @param  softmax  true for softmax outputs
+   */
+  public void setSoftmax(boolean softmax) {
+    this.softmax=softmax;
+  }
+
+  /** Determine whether the output nodes are normalized by softmax.
+   *  @return boolean  true for softmax outputs
+   */
+  public boolean isSoftmax() {
+    return softmax;
+  }
+
+  /** Normalizes the summed activations of the output nodes by softmax, in place.
+   *  @param  o  The summed activations, which receive the outputs.
+   *  @param  n  The number of output nodes.
+   */
+  static void softmax(double[] o, int n) {
+    double max=Double.NEGATIVE_INFINITY;
+    for (int k=0; k<n; k++)
+      max=Math.max(max, o[k]);
+    double sum=0;
+    for (int k=0; k<n; k++)
+      sum+=o[k]=Math.exp(o[k]-max);
+    for (int k=0; k<n; k++)
+      o[k]/=sum;
+  }
+
+  /** Choose how the logistic output function is computed: exactly or by an approximation (see Activation).
+   *  A network should be used with the function it was trained with.
+   *  @param  activation  The function.
+   */
+  public void setActivation(Activation activation) {
+    this.activation=activation;
+  }
+
+  /** Determine how the logistic output function is computed.
+   *  @return Activation  the function
+   */
+  public Activation getActivation() {
+    return activation==null?Activation.EXACT:activation;
+  }
+
+  /** The error of an output node, by which its incoming weights change.
+   *  @param  diff  The target value less the output value.
+   *  @param  o     The output value.
+   *  @return double  the error
+   */
+  private double outputError(double diff, double o) {
+    return softmax?diff:diff*outputFunctionDerivative(o);
+  }
+
   /** The so-called output function. Computes the output value of a node given the summed incoming activation.
    *  You can use anyone you like if it is differentiable.
    *  This one is called the logistic function (a sigmoid) and produces values bounded between 0 and 1.
+   *  It is computed as chosen by setActivation.
    *  @param  net The summed incoming activation
    *  @return double
    */
   public double outputFunction(double net) {
-    return 1.0/(1.0+Math.exp(-net));
+    return activation==null?1.0/(1.0+Math.exp(-net)):activation.value(net);
   }
 
   /** The derivative of the output function.
@@ -86,21 +220,104 @@ public class NN1 implements Serializable {
    *  @return double[]    The vector of computed output values
    */
   public double[] feedforward(double[] x) {
+    return feedforward(x, workspace());
+  }
+
+  /** Computes the output values of the output nodes in the network given input values.
+   *  @param  x  The input values.
+   *  @param  ws The workspace which receives the node values.
+   *  @return double[]    The vector of computed output values (held by the workspace)
+   */
+  public double[] feedforward(double[] x, Workspace ws) {
+    double[] h=ws.h;
     // compute the activation of each hidden node (depends on input values)
     for (int q=0; q<h.length; q++) {
       double sum=0; // reset summed activation value
+      double[] whq=wh[q];
       for (int j=0; j<x.length; j++)
-        sum+=x[j]*wh[q][j];
+        sum+=x[j]*whq[j];
+      h[q]=outputFunction(sum+biash[q]);
+    }
+    return feedforwardOutput(ws);
+  }
+
+  /** Computes the output values of the output nodes in the network given input values.
+   *  The input values are read in place from the view and are not copied.
+   *  @param  x  The input values.
+   *  @return double[]    The vector of computed output values
+   */
+  public double[] feedforward(FeatureView x) {
+    return feedforward(x, workspace());
+  }
+
+  /** Computes the output values of the output nodes in the network given input values.
+   *  The input values are read in place from the view and are not copied.
+   *  @param  x  The input values.
+   *  @param  ws The workspace which receives the node values.
+   *  @return double[]    The vector of computed output values (held by the workspace)
+   */
+  public double[] feedforward(FeatureView x, Workspace ws) {
+    if (x instanceof SparseFeatures)
+      return feedforward((SparseFeatures)x, ws);
+    double[] h=ws.h;
+    // compute the activation of each hidden node (depends on input values)
+    int nInput=x.size();
+    for (int q=0; q<h.length; q++) {
+      double sum=0; // reset summed activation value
+      double[] whq=wh[q];
+      for (int j=0; j<nInput; j++)
+        sum+=x.getValue(j)*whq[j];
+      h[q]=outputFunction(sum+biash[q]);
+    }
+    return feedforwardOutput(ws);
+  }
+
+  /** Computes the output values of the output nodes in the network given input values.
+   *  Only the inputs that are not 0 are multiplied with the weights; the result is the same as for
+   *  the dense input.
+   *  @param  x  The input values.
+   *  @return double[]    The vector of computed output values
+   */
+  public double[] feedforward(SparseFeatures x) {
+    return feedforward(x, workspace());
+  }
+
+  /** Computes the output values of the output nodes in the network given input values.
+   *  Only the inputs that are not 0 are multiplied with the weights.
+   *  @param  x  The input values.
+   *  @param  ws The workspace which receives the node values.
+   *  @return double[]    The vector of computed output values (held by the workspace)
+   */
+  public double[] feedforward(SparseFeatures x, Workspace ws) {
+    double[] h=ws.h;
+    // compute the activation of each hidden node (depends on input values)
+    int[] index=x.index;
+    double[] value=x.value;
+    int nonZero=x.nonZero;
+    for (int q=0; q<h.length; q++) {
+      double sum=0; // reset summed activation value
+      double[] whq=wh[q];
+      for (int k=0; k<nonZero; k++)
+        sum+=value[k]*whq[index[k]];
       h[q]=outputFunction(sum+biash[q]);
     }
+    return feedforwardOutput(ws);
+  }
 
+  /** Computes the output values of the output nodes from the hidden values of a workspace.
+   *  @return double[]    The vector of computed output values
+   */
+  private double[] feedforwardOutput(Workspace ws) {
+    double[] o=ws.o, h=ws.h;
     // compute the activation of each output node (depends on hidden values)
     for (int k=0; k<o.length; k++) {
       double sum=0; // reset summed activation value
       for (int q=0; q<h.length; q++)
         sum+=h[q]*w[k][q];
-      o[k]=outputFunction(sum+bias[k]);
+      o[k]=softmax?sum+bias[k]:outputFunction(sum+bias[k]);
     }
+    if (softmax)
+      softmax(o, o.length);
     return o;
   }
 
@@ -109,7 +326,26 @@ public class NN1 implements Serializable {
    * compared to desired outputs d.  Does not modify weights.
    */
   public double error(double[] x, double[] d) {
-    double[] o = feedforward(x);
+    return rmse(feedforward(x), d);
+  }
+
+  /**
+   * Computes the RMS error between actual outputs after feeding through x,
+   * compared to desired outputs d.  Does not modify weights.
+   */
+  public double error(FeatureView x, double[] d) {
+    return rmse(feedforward(x), d);
+  }
+
+  /**
+   * Computes the RMS error between actual outputs after feeding through x,
+   * compared to desired outputs d.  Does not modify weights.
+   */
+  public double error(FeatureView x, double[] d, Workspace ws) {
+    return rmse(feedforward(x, ws), d);
+  }
+
+  private double rmse(double[] o, double[] d) {
     double rmse=0;
     for (int k=0; k<o.length; k++) {
       double diff=d[k]-o[k];
@@ -129,31 +365,457 @@ public class NN1 implements Serializable {
    *  @return double  An error value (the root-mean-squared-error).
    */
   public double train(double[] x, double[] d, double eta) {
+    if (optimizer!=null)
+      return train(new FeatureVector(x), d, eta, workspace());
 
     // present the input and calculate the outputs
-    feedforward(x);
+    Workspace ws=workspace();
+    feedforward(x, ws);
 
-    double[] error=new double[o.length];
-    // compute the error of output nodes (explicit target is available -- so quite simple)
-    // also, calculate the root-mean-squared-error to indicate progress
-    double rmse=0;
+    double[] errorh=ws.errorh;
+    double rmse=backpropagate(d, ws, eta);
+
+    // change weights of the hidden nodes according to errors
+    for (int q=0; q<h.length; q++) {
+      double[] whq=wh[q];
+      for (int j=0; j<x.length; j++) {
+        whq[j]+=errorh[q]*x[j]*eta;
+      }
+      biash[q]+=errorh[q]*1.0*eta; // bias can be understood as a weight from a node which is always 1.0.
+    }
+
+    return rmse;
+  }
+
+  /** Adapts weights in the network given the specification of which values that should appear at the output (target)
+   *  when the input has been presented. Same as train(double[], double[], double), except that the input values
+   *  are read in place from the view.
+   *  @param  x  The input values.
+   *  @param  d  The desired output values.
+   *  @param  eta     The learning rate, always between 0 and 1, typically a small value, e.g. 0.1
+   *  @return double  An error value (the root-mean-squared-error).
+   */
+  public double train(FeatureView x, double[] d, double eta) {
+    return train(x, d, eta, workspace());
+  }
+
+  /** Adapts weights in the network given the specification of which values that should appear at the output (target)
+   *  when the input has been presented. Same as train(FeatureView, double[], double), except that the node values
+   *  and errors are kept in the specified workspace.
+   *  @param  x  The input values.
+   *  @param  d  The desired output values.
+   *  @param  eta     The learning rate, always between 0 and 1, typically a small value, e.g. 0.1
+   *  @param  ws      The workspace of the calling thread.
+   *  @return double  An error value (the root-mean-squared-error).
+   */
+  public double train(FeatureView x, double[] d, double eta, Workspace ws) {
+    if (optimizer!=null)
+      return trainOptimized(x, d, eta, ws);
+    if (x instanceof SparseFeatures)
+      return train((SparseFeatures)x, d, eta, ws);
+
+    // present the input and calculate the outputs
+    feedforward(x, ws);
+
+    double[] errorh=ws.errorh;
+    double rmse=backpropagate(d, ws, eta);
+
+    // change weights of the hidden nodes according to errors
+    int nInput=x.size();
+    for (int q=0; q<h.length; q++) {
+      double[] whq=wh[q];
+      for (int j=0; j<nInput; j++) {
+        whq[j]+=errorh[q]*x.getValue(j)*eta;
+      }
+      biash[q]+=errorh[q]*1.0*eta; // bias can be understood as a weight from a node which is always 1.0.
+    }
+
+    return rmse;
+  }
+
+  /** Adapts weights in the network given the specification of which values that should appear at the output (target)
+   *  when the input has been presented. Same as train(double[], double[], double), except that only the weights
+   *  from the inputs that are not 0 are changed (the others would not change anyway).
+   *  @param  x  The input values.
+   *  @param  d  The desired output values.
+   *  @param  eta     The learning rate, always between 0 and 1, typically a small value, e.g. 0.1
+   *  @return double  An error value (the root-mean-squared-error).
+   */
+  public double train(SparseFeatures x, double[] d, double eta) {
+    return train(x, d, eta, workspace());
+  }
+
+  /** Adapts weights in the network given the specification of which values that should appear at the output (target)
+   *  when the input has been presented. Same as train(SparseFeatures, double[], double), except that the node values
+   *  and errors are kept in the specified workspace.
+   *  @param  x  The input values.
+   *  @param  d  The desired output values.
+   *  @param  eta     The learning rate, always between 0 and 1, typically a small value, e.g. 0.1
+   *  @param  ws      The workspace of the calling thread.
+   *  @return double  An error value (the root-mean-squared-error).
+   */
+  public double train(SparseFeatures x, double[] d, double eta, Workspace ws) {
+    if (optimizer!=null)
+      return trainOptimized(x, d, eta, ws);
+
+    // present the input and calculate the outputs
+    feedforward(x, ws);
+
+    double[] errorh=ws.errorh;
+    double rmse=backpropagate(d, ws, eta);
+
+    // change weights of the hidden nodes according to errors
+    int[] index=x.index;
+    double[] value=x.value;
+    int nonZero=x.nonZero;
+    for (int q=0; q<h.length; q++) {
+      double[] whq=wh[q];
+      for (int k=0; k<nonZero; k++) {
+        whq[index[k]]+=errorh[q]*value[k]*eta;
+      }
+      biash[q]+=errorh[q]*1.0*eta; // bias can be understood as a weight from a node which is always 1.0.
+    }
+
+    return rmse;
+  }
+
+  /** Adapts weights in the network by the optimizer, given one input and its desired output values.
+   *  The gradient of all weights is computed in the workspace and then passed to the optimizer.
+   *  @return double  An error value (the root-mean-squared-error).
+   */
+  private double trainOptimized(FeatureView x, double[] d, double eta, Workspace ws) {
+    feedforward(x, ws);
+    double rmse=errors(d, ws);
+    if (ws.gradient==null)
+      ws.gradient=newGradient();
+    Gradient g=ws.gradient;
+    double[] h=ws.h, error=ws.error, errorh=ws.errorh;
     for (int k=0; k<o.length; k++) {
-      double diff=d[k]-o[k];
-      error[k]=diff*outputFunctionDerivative(o[k]);
-      rmse+=diff*diff;
+      double[] gk=g.w[k];
+      for (int q=0; q<h.length; q++)
+        gk[q]=error[k]*h[q];
+      g.bias[k]=error[k];
     }
-    rmse=Math.sqrt(rmse/o.length);
+    for (int q=0; q<h.length; q++) {
+      double[] gq=g.wh[q];
+      if (x instanceof SparseFeatures) {
+        SparseFeatures s=(SparseFeatures)x;
+        Arrays.fill(gq, 0.0);
+        for (int k=0; k<s.nonZero; k++)
+          gq[s.index[k]]=errorh[q]*s.value[k];
+      } else {
+        int nInput=x.size();
+        for (int j=0; j<nInput; j++)
+          gq[j]=errorh[q]*x.getValue(j);
+      }
+      g.biash[q]=errorh[q];
+    }
+    optimizer.update(this, g, eta);
+    return rmse;
+  }
 
-    // now compute the error of hidden nodes (need to calculate contribution of each hidden node to final output)
-    // allocate space for errors of individual nodes
-    double[] errorh=new double[h.length];
+  /** Adapts weights in the network given a batch of inputs and the values that should appear at the output
+   *  for each of them. The error of every pattern is backpropagated through the weights as they are before the
+   *  batch, and the weights are then changed once by the sum of the changes that online training would make
+   *  for each pattern, so the same learning rate applies. The patterns pass through the weights together as
+   *  matrix-matrix products, which reuse each weight for several patterns while it is in cache.
+   *  @param  x  The input values of each pattern.
+   *  @param  d  The desired output values of each pattern.
+   *  @param  eta     The learning rate, always between 0 and 1, typically a small value, e.g. 0.1
+   *  @return double  The mean of the root-mean-squared-errors of the patterns.
+   */
+  public double trainBatch(FeatureView[] x, double[][] d, double eta) {
+    return trainBatch(x, d, eta, workspace());
+  }
+
+  /** Adapts weights in the network given a batch of inputs and the values that should appear at the output
+   *  for each of them. Same as trainBatch(FeatureView[], double[][], double), except that the node values
+   *  and errors are kept in the specified workspace.
+   *  @param  x  The input values of each pattern.
+   *  @param  d  The desired output values of each pattern.
+   *  @param  eta     The learning rate, always between 0 and 1, typically a small value, e.g. 0.1
+   *  @param  ws      The workspace of the calling thread.
+   *  @return double  The mean of the root-mean-squared-errors of the patterns.
+   */
+  public double trainBatch(FeatureView[] x, double[][] d, double eta, Workspace ws) {
+    int n=x.length;
+    if (optimizer!=null) {
+      if (ws.gradient==null)
+        ws.gradient=newGradient();
+      gradient(x, d, 0, n, ws.gradient, ws);
+      optimizer.update(this, ws.gradient, eta);
+      return n>0?ws.gradient.error/n:0;
+    }
+    int nInput=n>0?x[0].size():0;
+    double rmse=backpropagateBatch(x, d, 0, n, ws);
+    double[][] bx=ws.bx, bh=ws.bh, bdo=ws.bdo, bdh=ws.bdh;
+
+    // change weights and biases by the changes summed over the patterns
+    addTransposedProduct(bdo, n, bh, w, o.length, h.length, eta);
+    addTransposedProduct(bdh, n, bx, wh, h.length, nInput, eta);
+    for (int b=0; b<n; b++) {
+      for (int k=0; k<o.length; k++)
+        bias[k]+=bdo[b][k]*eta;
+      for (int q=0; q<h.length; q++)
+        biash[q]+=bdh[b][q]*eta;
+    }
+    return n>0?rmse/n:0;
+  }
+
+  /** Computes the changes of the weights and biases that a part of a batch calls for, without changing them.
+   *  The weights are only read, so several threads can compute the gradients of different parts of a batch
+   *  at the same time (each with its own workspace and gradient), which can then be added up and applied with
+   *  update. The result only depends on the patterns and the weights, not on the order in which threads run.
+   *  @param  x  The input values of each pattern.
+   *  @param  d  The desired output values of each pattern.
+   *  @param  from    The index of the first pattern of the part.
+   *  @param  to      The index after the last pattern of the part.
+   *  @param  g       Receives the changes, summed over the patterns of the part.
+   *  @param  ws      The workspace of the calling thread.
+   */
+  public void gradient(FeatureView[] x, double[][] d, int from, int to, Gradient g, Workspace ws) {
+    g.clear();
+    int n=to-from;
+    if (n<=0)
+      return;
+    int nInput=x[from].size();
+    g.error=backpropagateBatch(x, d, from, to, ws);
+    double[][] bx=ws.bx, bh=ws.bh, bdo=ws.bdo, bdh=ws.bdh;
+    addTransposedProduct(bdo, n, bh, g.w, o.length, h.length, 1.0);
+    addTransposedProduct(bdh, n, bx, g.wh, h.length, nInput, 1.0);
+    for (int b=0; b<n; b++) {
+      for (int k=0; k<o.length; k++)
+        g.bias[k]+=bdo[b][k];
+      for (int q=0; q<h.length; q++)
+        g.biash[q]+=bdh[b][q];
+    }
+  }
+
+  /** Changes the weights and biases by a gradient, through the optimizer if there is one.
+   *  @param  g       The changes, as computed by gradient.
+   *  @param  eta     The learning rate, always between 0 and 1, typically a small value, e.g. 0.1
+   */
+  public void update(Gradient g, double eta) {
+    if (optimizer!=null) {
+      optimizer.update(this, g, eta);
+      return;
+    }
+    for (int k=0; k<o.length; k++) {
+      double[] wk=w[k], gk=g.w[k];
+      for (int q=0; q<h.length; q++)
+        wk[q]+=gk[q]*eta;
+      bias[k]+=g.bias[k]*eta;
+    }
     for (int q=0; q<h.length; q++) {
-      errorh[q]=0;
+      double[] whq=wh[q], gq=g.wh[q];
+      for (int j=0; j<whq.length; j++)
+        whq[j]+=gq[j]*eta;
+      biash[q]+=g.biash[q]*eta;
+    }
+  }
+
+  /** Creates a gradient of the size of this network, to be filled in by gradient.
+   *  @return Gradient  a new gradient
+   */
+  public Gradient newGradient() {
+    return new Gradient(w.length, wh.length, wh.length>0?wh[0].length:0);
+  }
+
+  /** The changes of the weights and biases that some patterns call for, summed over the patterns
+   *  (and not yet multiplied by the learning rate).
+   */
+  public static class Gradient {
+    double[][] w, wh;
+    double[] bias, biash;
+    double error;         // the summed root-mean-squared-errors of the patterns
+
+    Gradient(int nOutput, int nHidden, int nInput) {
+      w=new double[nOutput][nHidden];
+      wh=new double[nHidden][nInput];
+      bias=new double[nOutput];
+      biash=new double[nHidden];
+    }
+
+    void clear() {
+      for (int k=0; k<w.length; k++)
+        Arrays.fill(w[k], 0.0);
+      for (int q=0; q<wh.length; q++)
+        Arrays.fill(wh[q], 0.0);
+      Arrays.fill(bias, 0.0);
+      Arrays.fill(biash, 0.0);
+      error=0;
+    }
+
+    /** Adds the changes of another gradient (of the same network) to this one.
+     *  @param  g  The other gradient
+     */
+    public void add(Gradient g) {
+      for (int k=0; k<w.length; k++) {
+        double[] wk=w[k], gk=g.w[k];
+        for (int q=0; q<wk.length; q++)
+          wk[q]+=gk[q];
+        bias[k]+=g.bias[k];
+      }
+      for (int q=0; q<wh.length; q++) {
+        double[] whq=wh[q], gq=g.wh[q];
+        for (int j=0; j<whq.length; j++)
+          whq[j]+=gq[j];
+        biash[q]+=g.biash[q];
+      }
+      error+=g.error;
+    }
+
+    /** Determine the summed root-mean-squared-errors of the patterns of the gradient
+     *  @return double  the summed error
+     */
+    public double getError() {
+      return error;
+    }
+  }
+
+  /** Presents the patterns [from, to) of a batch to the network and computes the errors of the nodes for each,
+   *  in the batch buffers of the workspace. Does not modify weights.
+   *  @return double  The summed root-mean-squared-errors of the patterns.
+   */
+  private double backpropagateBatch(FeatureView[] x, double[][] d, int from, int to, Workspace ws) {
+    int n=to-from;
+    if (n<=0)
+      return 0;
+    int nInput=x[from].size();
+    if (ws.bx==null || ws.bx.length<n || ws.bx[0].length!=nInput) {
+      ws.bx=new double[n][nInput];
+      ws.bh=new double[n][h.length];
+      ws.bo=new double[n][o.length];
+      ws.bdo=new double[n][o.length];
+      ws.bdh=new double[n][h.length];
+    }
+    double[][] bx=ws.bx, bh=ws.bh, bo=ws.bo, bdo=ws.bdo, bdh=ws.bdh;
+
+    // present the inputs as the rows of a matrix and calculate the hidden and output values
+    for (int b=0; b<n; b++) {
+      double[] row=bx[b];
+      FeatureView xb=x[from+b];
+      if (xb instanceof SparseFeatures) {
+        SparseFeatures s=(SparseFeatures)xb;
+        Arrays.fill(row, 0.0);
+        for (int k=0; k<s.nonZero; k++)
+          row[s.index[k]]=s.value[k];
+      } else {
+        for (int j=0; j<nInput; j++)
+          row[j]=xb.getValue(j);
+      }
+    }
+    multiplyTransposed(bx, n, wh, h.length, nInput, bh);
+    for (int b=0; b<n; b++)
+      for (int q=0; q<h.length; q++)
+        bh[b][q]=outputFunction(bh[b][q]+biash[q]);
+    multiplyTransposed(bh, n, w, o.length, h.length, bo);
+    for (int b=0; b<n; b++) {
+      for (int k=0; k<o.length; k++)
+        bo[b][k]=softmax?bo[b][k]+bias[k]:outputFunction(bo[b][k]+bias[k]);
+      if (softmax)
+        softmax(bo[b], o.length);
+    }
+
+    // compute the error of output nodes, and the root-mean-squared-error of each pattern
+    double rmse=0;
+    for (int b=0; b<n; b++) {
+      double sum=0;
       for (int k=0; k<o.length; k++) {
-        errorh[q]+=error[k]*w[k][q];
+        double diff=d[from+b][k]-bo[b][k];
+        bdo[b][k]=outputError(diff, bo[b][k]);
+        sum+=diff*diff;
+      }
+      rmse+=Math.sqrt(sum/o.length);
+    }
+
+    // compute the error of hidden nodes (before any weights are changed)
+    for (int b=0; b<n; b++) {
+      for (int q=0; q<h.length; q++) {
+        double sum=0;
+        for (int k=0; k<o.length; k++)
+          sum+=bdo[b][k]*w[k][q];
+        bdh[b][q]=sum*outputFunctionDerivative(bh[b][q]);
+      }
+    }
+    return rmse;
+  }
+
+  /** Computes c[i][k] = sum over j of a[i][j]*b[k][j], for the first nA rows of a and the first nB rows of b.
+   *  The rows of b are taken ROW_BLOCK at a time, and each is multiplied with four rows of a at once,
+   *  so every value of b that is loaded is used four times.
+   */
+  private static void multiplyTransposed(double[][] a, int nA, double[][] b, int nB, int n, double[][] c) {
+    for (int k0=0; k0<nB; k0+=ROW_BLOCK) {
+      int k1=Math.min(k0+ROW_BLOCK, nB);
+      int i=0;
+      for (; i+4<=nA; i+=4) {
+        double[] a0=a[i], a1=a[i+1], a2=a[i+2], a3=a[i+3];
+        for (int k=k0; k<k1; k++) {
+          double[] bk=b[k];
+          double s0=0, s1=0, s2=0, s3=0;
+          for (int j=0; j<n; j++) {
+            double v=bk[j];
+            s0+=a0[j]*v;
+            s1+=a1[j]*v;
+            s2+=a2[j]*v;
+            s3+=a3[j]*v;
+          }
+          c[i][k]=s0;
+          c[i+1][k]=s1;
+          c[i+2][k]=s2;
+          c[i+3][k]=s3;
+        }
+      }
+      for (; i<nA; i++) {
+        double[] ai=a[i];
+        for (int k=k0; k<k1; k++) {
+          double[] bk=b[k];
+          double s=0;
+          for (int j=0; j<n; j++)
+            s+=ai[j]*bk[j];
+          c[i][k]=s;
+        }
       }
-      errorh[q]*=outputFunctionDerivative(h[q]);
     }
+  }
+
+  /** Computes t[k][j] += eta * sum over i of a[i][k]*b[i][j], for the first nA rows of a and b.
+   *  The columns of t are taken COLUMN_BLOCK at a time, and four rows of b are added at once,
+   *  so every value of t is loaded and stored once per four patterns.
+   */
+  private static void addTransposedProduct(double[][] a, int nA, double[][] b, double[][] t, int nK, int n, double eta) {
+    for (int j0=0; j0<n; j0+=COLUMN_BLOCK) {
+      int j1=Math.min(j0+COLUMN_BLOCK, n);
+      for (int k=0; k<nK; k++) {
+        double[] tk=t[k];
+        int i=0;
+        for (; i+4<=nA; i+=4) {
+          double c0=a[i][k]*eta, c1=a[i+1][k]*eta, c2=a[i+2][k]*eta, c3=a[i+3][k]*eta;
+          double[] b0=b[i], b1=b[i+1], b2=b[i+2], b3=b[i+3];
+          for (int j=j0; j<j1; j++)
+            tk[j]+=c0*b0[j]+c1*b1[j]+c2*b2[j]+c3*b3[j];
+        }
+        for (; i<nA; i++) {
+          double ci=a[i][k]*eta;
+          double[] bi=b[i];
+          for (int j=j0; j<j1; j++)
+            tk[j]+=ci*bi[j];
+        }
+      }
+    }
+  }
+
+  /** Computes the errors of the output and hidden nodes after a feedforward pass, and changes the weights
+   *  of the output nodes. The weights of the hidden nodes depend on the input and are left to the caller.
+   *  @param  d  The desired output values.
+   *  @param  ws      The workspace with the node values, which receives the errors of the nodes.
+   *  @param  eta     The learning rate
+   *  @return double  An error value (the root-mean-squared-error).
+   */
+  private double backpropagate(double[] d, Workspace ws, double eta) {
+    double rmse=errors(d, ws);
+    double[] h=ws.h, error=ws.error;
 
     // change weights of the output nodes according to errors
     for (int k=0; k<o.length; k++) {
@@ -162,15 +824,34 @@ public class NN1 implements Serializable {
       }
       bias[k]+=error[k]*1.0*eta; // bias can be understood as a weight from a node which is always 1.0.
     }
+    return rmse;
+  }
 
-    // change weights of the hidden nodes according to errors
+  /** Computes the errors of the output and hidden nodes after a feedforward pass. Does not modify weights.
+   *  @param  d  The desired output values.
+   *  @param  ws      The workspace with the node values, which receives the errors of the nodes.
+   *  @return double  An error value (the root-mean-squared-error).
+   */
+  private double errors(double[] d, Workspace ws) {
+    double[] o=ws.o, h=ws.h, error=ws.error, errorh=ws.errorh;
+    // compute the error of output nodes (explicit target is available -- so quite simple)
+    // also, calculate the root-mean-squared-error to indicate progress
+    double rmse=0;
+    for (int k=0; k<o.length; k++) {
+      double diff=d[k]-o[k];
+      error[k]=outputError(diff, o[k]);
+      rmse+=diff*diff;
+    }
+    rmse=Math.sqrt(rmse/o.length);
+
+    // now compute the error of hidden nodes (need to calculate contribution of each hidden node to final output)
     for (int q=0; q<h.length; q++) {
-      for (int j=0; j<x.length; j++) {
-        wh[q][j]+=errorh[q]*x[j]*eta;
+      errorh[q]=0;
+      for (int k=0; k<o.length; k++) {
+        errorh[q]+=error[k]*w[k][q];
       }
-      biash[q]+=errorh[q]*1.0*eta; // bias can be understood as a weight from a node which is always 1.0.
+      errorh[q]*=outputFunctionDerivative(h[q]);
     }
-
     return rmse;
   }
 
@@ -0,0 +1,89 @@
+package machl;
+
+import java.io.Serializable;
+
+/**
+ * <p>Decides how the weights of a NN1 change by the gradient of a pattern or batch, e.g. with momentum.
+ * Without an optimizer, NN1 changes each weight by its gradient times the learning rate.</p>
+ * An optimizer keeps its state (e.g. the velocity of each weight) in arrays of the shape of the network, which
+ * are allocated once by init, so that updates allocate nothing. An optimizer belongs to one network.
+ */
+
+public abstract class Optimizer implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Allocate the state for a network, so that it is ready for update
+   * @param nn the network
+   */
+  protected abstract void init(NN1 nn);
+
+  /**
+   * Start an update, e.g. to count the steps taken
+   */
+  protected void begin() {
+  }
+
+  /**
+   * Change a row of weights (or the biases of a layer) by its gradient
+   * @param p the weights
+   * @param g the gradient of the weights (the direction in which the error decreases)
+   * @param row the index of the row in the arrays made by newState
+   * @param eta the learning rate
+   */
+  protected abstract void step(double[] p, double[] g, int row, double eta);
+
+  /**
+   * Change the weights and biases of a network by a gradient
+   * @param nn the network
+   * @param g the gradient, as computed by NN1.gradient
+   * @param eta the learning rate
+   */
+  void update(NN1 nn, NN1.Gradient g, double eta) {
+    begin();
+    int row=0;
+    for (int k=0; k<nn.w.length; k++)
+      step(nn.w[k], g.w[k], row++, eta);
+    for (int q=0; q<nn.wh.length; q++)
+      step(nn.wh[q], g.wh[q], row++, eta);
+    step(nn.bias, g.bias, row++, eta);
+    step(nn.biash, g.biash, row++, eta);
+  }
+
+  /**
+   * Allocate a state value for each weight and bias of a network, as rows in the order that update steps
+   * through them: the rows of w, the rows of wh, bias and biash.
+   * @param nn the network
+   * @return the state values, all 0
+   */
+  protected static double[][] newState(NN1 nn) {
+    int nOutput=nn.w.length, nHidden=nn.wh.length;
+    double[][] state=new double[nOutput+nHidden+2][];
+    int row=0;
+    for (int k=0; k<nOutput; k++)
+      state[row++]=new double[nn.w[k].length];
+    for (int q=0; q<nHidden; q++)
+      state[row++]=new double[nn.wh[q].length];
+    state[row++]=new double[nOutput];
+    state[row++]=new double[nHidden];
+    return state;
+  }
+
+  /**
+   * Create an optimizer by name: "sgd" (none), "momentum", "nesterov" or "adam"
+   * @param name the name of the optimizer
+   * @param momentum the momentum of "momentum" and "nesterov", e.g. 0.9
+   * @return the optimizer, or null for "sgd"
+   */
+  public static Optimizer forName(String name, double momentum) {
+    if (name.equalsIgnoreCase("sgd"))
+      return null;
+    if (name.equalsIgnoreCase("momentum"))
+      return new Momentum(momentum, false);
+    if (name.equalsIgnoreCase("nesterov"))
+      return new Momentum(momentum, true);
+    if (name.equalsIgnoreCase("adam"))
+      return new Adam();
+    throw new IllegalArgumentException("Unknown optimizer: "+name+" (use sgd, momentum, nesterov or adam)");
+  }
+}
@@ -0,0 +1,208 @@
+package machl;
+
+import java.io.Serializable;
+
+/**
+ * <p>A PackedBitmap holds a vector of bits packed 64 to a long word, e.g. a 32x32 bitmap in 16 words.
+ * Bit i is stored in word i/64 at position i%64. Bits beyond the size of the vector are always 0,
+ * so that counting can work on whole words.</p>
+ */
+
+public class PackedBitmap implements FeatureView, Serializable {
+  private static final long serialVersionUID = 1L;
+  private int nBits;
+  long[] words;
+
+  /**
+   * Create a bit vector of a specified size with all bits off
+   * @param nBits the number of bits
+   */
+  public PackedBitmap(int nBits) {
+    this.nBits=nBits;
+    words=new long[(nBits+63)>>>6];
+  }
+
+  /**
+   * Create a bit vector around already packed words (the words are not copied)
+   * @param nBits the number of bits
+   * @param words the packed bits, with all bits beyond nBits set to 0
+   */
+  public PackedBitmap(int nBits, long[] words) {
+    if (words.length!=((nBits+63)>>>6))
+      throw new IllegalArgumentException("Expected "+((nBits+63)>>>6)+" words for "+nBits+" bits, got "+words.length);
+    this.nBits=nBits;
+    this.words=words;
+  }
+
+  /**
+   * Create a bit vector from an array of booleans
+   * @param bits the bits
+   */
+  public PackedBitmap(boolean[] bits) {
+    this(bits.length);
+    for (int i=0; i<bits.length; i++)
+      if (bits[i])
+        words[i>>>6]|=1L<<i;
+  }
+
+  /**
+   * Create a bit vector from binary features (a bit is on if the feature is set)
+   * @param features the features
+   */
+  public PackedBitmap(FeatureView features) {
+    this(features.size());
+    for (int i=0; i<nBits; i++)
+      if (features.isSet(i))
+        words[i>>>6]|=1L<<i;
+  }
+
+  /**
+   * Determine the number of bits in the vector
+   * @return the number of bits
+   */
+  public int size() {
+    return nBits;
+  }
+
+  /**
+   * Get a bit
+   * @param index the index of the bit
+   * @return true if the bit is on
+   */
+  public boolean isSet(int index) {
+    return (words[index>>>6]&(1L<<index))!=0;
+  }
+
+  /**
+   * Get a bit as a number
+   * @param index the index of the bit
+   * @return 1.0 if the bit is on, 0.0 otherwise
+   */
+  public double getValue(int index) {
+    return isSet(index)?1.0:0.0;
+  }
+
+  /**
+   * Set a bit to a specified value
+   * @param index the index of the bit
+   * @param value the value
+   */
+  public void set(int index, boolean value) {
+    if (value)
+      words[index>>>6]|=1L<<index;
+    else
+      words[index>>>6]&=~(1L<<index);
+  }
+
+  /**
+   * Get the packed words (not copied)
+   * @return the words holding the bits
+   */
+  public long[] getWords() {
+    return words;
+  }
+
+  /**
+   * The bitwise AND of this and another vector of the same size
+   * @param other the other vector
+   * @return a new vector
+   */
+  public PackedBitmap and(PackedBitmap other) {
+    checkSize(other);
+    long[] result=new long[words.length];
+    for (int i=0; i<words.length; i++)
+      result[i]=words[i]&other.words[i];
+    return new PackedBitmap(nBits, result);
+  }
+
+  /**
+   * The bitwise OR of this and another vector of the same size
+   * @param other the other vector
+   * @return a new vector
+   */
+  public PackedBitmap or(PackedBitmap other) {
+    checkSize(other);
+    long[] result=new long[words.length];
+    for (int i=0; i<words.length; i++)
+      result[i]=words[i]|other.words[i];
+    return new PackedBitmap(nBits, result);
+  }
+
+  /**
+   * The bitwise XOR of this and another vector of the same size
+   * @param other the other vector
+   * @return a new vector
+   */
+  public PackedBitmap xor(PackedBitmap other) {
+    checkSize(other);
+    long[] result=new long[words.length];
+    for (int i=0; i<words.length; i++)
+      result[i]=words[i]^other.words[i];
+    return new PackedBitmap(nBits, result);
+  }
+
+  /**
+   * The bitwise AND of this and another vector of the same size, written into a third vector
+   * @param other the other vector
+   * @param result the vector receiving the result (may be this or other)
+   */
+  public void and(PackedBitmap other, PackedBitmap result) {
+    checkSize(other);
+    checkSize(result);
+    for (int i=0; i<words.length; i++)
+      result.words[i]=words[i]&other.words[i];
+  }
+
+  /**
+   * Count the bits that are on
+   * @return the number of bits that are on
+   */
+  public int popcount() {
+    int cnt=0;
+    for (int i=0; i<words.length; i++)
+      cnt+=Long.bitCount(words[i]);
+    return cnt;
+  }
+
+  /**
+   * Count the bits that are on in both this and another vector, without creating the AND of the two
+   * @param other the other vector
+   * @return the number of bits that are on in both
+   */
+  public int andPopcount(PackedBitmap other) {
+    checkSize(other);
+    int cnt=0;
+    for (int i=0; i<words.length; i++)
+      cnt+=Long.bitCount(words[i]&other.words[i]);
+    return cnt;
+  }
+
+  /**
+   * Count the bits that differ between this and another vector
+   * @param other the other vector
+   * @return the Hamming distance
+   */
+  public int hammingDistance(PackedBitmap other) {
+    checkSize(other);
+    int cnt=0;
+    for (int i=0; i<words.length; i++)
+      cnt+=Long.bitCount(words[i]^other.words[i]);
+    return cnt;
+  }
+
+  /**
+   * Convert the vector to an array of booleans
+   * @return the boolean array
+   */
+  public boolean[] toBooleanArray() {
+    boolean[] arr=new boolean[nBits];
+    for (int i=0; i<nBits; i++)
+      arr[i]=isSet(i);
+    return arr;
+  }
+
+  private void checkSize(PackedBitmap other) {
+    if (other.nBits!=nBits)
+      throw new IllegalArgumentException("Bit vectors differ in size: "+nBits+" and "+other.nBits);
+  }
+}
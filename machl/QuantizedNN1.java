@@ -0,0 +1,183 @@
+package machl;
+
+import java.io.Serializable;
+
+/**
+ * <p>A trained single-hidden layer network like NN1 with its weights quantized to 8-bit integers, which computes
+ * the summed activations of its nodes as integer dot products.</p>
+ * Each row of weights (the weights into one node) has its own scale, the largest magnitude in the row mapped to
+ * 127. The inputs and hidden values are quantized with one scale each, which is calibrated on a sample of inputs:
+ * the largest input and hidden value that the sample produces is mapped to 127. Biases are kept in double, and
+ * the summed activation of a node is scaled back before the output function, so the outputs are double values
+ * as those of NN1. The weights take a quarter of the memory of FloatNN1 (an eighth of NN1). The weights are only
+ * read while the output is computed, so threads that each use their own Workspace can compute outputs at the
+ * same time.
+ */
+
+public class QuantizedNN1 implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private int nInput, nHidden, nOutput;
+  byte[] w;             // the quantized weight values [to node*nHidden+from node]
+  byte[] wh;            // the quantized weight values for the hidden layer [to node*nInput+from input]
+  double[] scale;       // the value of one step of the weights of each node
+  double[] scaleh;      // the value of one step of the weights of each hidden node
+  double[] bias;        // the bias values for nodes
+  double[] biash;       // the bias values for hidden nodes
+  double xScale;        // the value of one step of the inputs
+  double hScale;        // the value of one step of the hidden values
+  boolean softmax;      // the output nodes are normalized by softmax, as in NN1
+  Activation activation;  // how the logistic function is computed, as in NN1
+  private transient Workspace workspace;  // the workspace of the methods without one
+
+  /** The quantized input and hidden values while a pattern is presented to the network.
+   */
+  public static class Workspace {
+    byte[] x, h;
+    double[] out;         // the output values as returned by feedforward
+
+    Workspace(int nInput, int nHidden, int nOutput) {
+      x=new byte[nInput];
+      h=new byte[nHidden];
+      out=new double[nOutput];
+    }
+  }
+
+  /** Constructs a network with the weights of a NN1 quantized to 8 bits, and calibrates the scales of the inputs
+   *  and hidden values on a sample of inputs.
+   *  @param  nn      The trained network.
+   *  @param  sample  Inputs like those the network will be presented with (at least one).
+   */
+  public QuantizedNN1(NN1 nn, FeatureView[] sample) {
+    if (sample.length==0)
+      throw new IllegalArgumentException("Quantization needs at least one input to calibrate on");
+    nOutput=nn.w.length;
+    nHidden=nn.wh.length;
+    nInput=nHidden>0?nn.wh[0].length:0;
+    w=new byte[nOutput*nHidden];
+    wh=new byte[nHidden*nInput];
+    scale=new double[nOutput];
+    scaleh=new double[nHidden];
+    softmax=nn.softmax;
+    activation=nn.getActivation();
+    bias=nn.bias.clone();
+    biash=nn.biash.clone();
+    for (int k=0; k<nOutput; k++)
+      scale[k]=quantizeRow(nn.w[k], w, k*nHidden);
+    for (int q=0; q<nHidden; q++)
+      scaleh[q]=quantizeRow(nn.wh[q], wh, q*nInput);
+
+    // the largest input and hidden value of the sample, as the float network computes them
+    NN1.Workspace ws=nn.newWorkspace();
+    double xMax=0, hMax=0;
+    for (FeatureView x : sample) {
+      for (int j=0; j<x.size(); j++)
+        xMax=Math.max(xMax, Math.abs(x.getValue(j)));
+      nn.feedforward(x, ws);
+      for (int q=0; q<nHidden; q++)
+        hMax=Math.max(hMax, ws.h[q]);
+    }
+    xScale=xMax>0?xMax/127:1.0/127;
+    hScale=hMax>0?hMax/127:1.0/127;
+  }
+
+  /** Quantizes a row of weights so that the largest magnitude becomes 127.
+   *  @return double  the value of one step
+   */
+  private static double quantizeRow(double[] row, byte[] to, int base) {
+    double max=0;
+    for (int j=0; j<row.length; j++)
+      max=Math.max(max, Math.abs(row[j]));
+    double step=max>0?max/127:1.0;
+    for (int j=0; j<row.length; j++)
+      to[base+j]=(byte)Math.round(row[j]/step);
+    return step;
+  }
+
+  /** Quantizes a value by a scale, saturating at +-127.
+   */
+  private static byte quantize(double value, double step) {
+    long v=Math.round(value/step);
+    return (byte)(v>127?127:v<-127?-127:v);
+  }
+
+  /** Creates a workspace for presenting patterns to this network, e.g. by another thread.
+   *  @return Workspace  a new workspace
+   */
+  public Workspace newWorkspace() {
+    return new Workspace(nInput, nHidden, nOutput);
+  }
+
+  private Workspace workspace() {
+    if (workspace==null)
+      workspace=newWorkspace();
+    return workspace;
+  }
+
+  /** The logistic output function, computed as in the NN1 it was made from.
+   *  @param  net The summed incoming activation
+   *  @return double
+   */
+  private double outputFunction(double net) {
+    return activation.value(net);
+  }
+
+  /** Computes the output values of the output nodes in the network given input values.
+   *  @param  x  The input values.
+   *  @return double[]    The vector of computed output values
+   */
+  public double[] feedforward(FeatureView x) {
+    return feedforward(x, workspace());
+  }
+
+  /** Computes the output values of the output nodes in the network given input values.
+   *  @param  x  The input values.
+   *  @param  ws The workspace which receives the node values.
+   *  @return double[]    The vector of computed output values (held by the workspace)
+   */
+  public double[] feedforward(FeatureView x, Workspace ws) {
+    byte[] h=ws.h;
+    if (x instanceof SparseFeatures) {
+      SparseFeatures s=(SparseFeatures)x;
+      int[] index=s.index;
+      int nonZero=s.nonZero;
+      if (ws.x.length<nonZero)
+        ws.x=new byte[nonZero];
+      byte[] xq=ws.x;
+      for (int k=0; k<nonZero; k++)
+        xq[k]=quantize(s.value[k], xScale);
+      // compute the activation of each hidden node from the inputs that are not 0
+      for (int q=0, base=0; q<nHidden; q++, base+=nInput) {
+        int sum=0;
+        for (int k=0; k<nonZero; k++)
+          sum+=xq[k]*wh[base+index[k]];
+        h[q]=quantize(outputFunction(sum*xScale*scaleh[q]+biash[q]), hScale);
+      }
+    } else {
+      // as in NN1, the input may have fewer values than the network has input nodes
+      int nx=x.size();
+      if (ws.x.length<nx)
+        ws.x=new byte[nx];
+      byte[] xq=ws.x;
+      for (int j=0; j<nx; j++)
+        xq[j]=quantize(x.getValue(j), xScale);
+      // compute the activation of each hidden node (depends on input values)
+      for (int q=0, base=0; q<nHidden; q++, base+=nInput) {
+        int sum=0;
+        for (int j=0; j<nx; j++)
+          sum+=xq[j]*wh[base+j];
+        h[q]=quantize(outputFunction(sum*xScale*scaleh[q]+biash[q]), hScale);
+      }
+    }
+    // compute the activation of each output node (depends on hidden values)
+    for (int k=0, base=0; k<nOutput; k++, base+=nHidden) {
+      int sum=0;
+      for (int q=0; q<nHidden; q++)
+        sum+=h[q]*w[base+q];
+      double net=sum*hScale*scale[k]+bias[k];
+      ws.out[k]=softmax?net:outputFunction(net);
+    }
+    if (softmax)
+      NN1.softmax(ws.out, nOutput);
+    return ws.out;
+  }
+}
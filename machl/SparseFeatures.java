@@ -0,0 +1,93 @@
+package machl;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * <p>A FeatureView which only stores the features that are not 0, as a list of indices (in increasing
+ * order) and values. NN1 recognizes it and only iterates over these features.</p>
+ * The arrays may be longer than the number of features that are not 0, when they are reused by assign.
+ */
+
+public class SparseFeatures implements FeatureView, Serializable {
+  private static final long serialVersionUID = 1L;
+  int size;        // the number of features, including those that are 0
+  int nonZero;     // the number of features that are not 0
+  int[] index;     // the indices of the features that are not 0 [0..nonZero-1]
+  double[] value;  // the values of the features that are not 0 [0..nonZero-1]
+
+  /**
+   * Create sparse features from a list of the features that are not 0
+   * @param size the number of features, including those that are 0
+   * @param index the indices of the features that are not 0, in increasing order (not copied)
+   * @param value the corresponding values (not copied)
+   */
+  public SparseFeatures(int size, int[] index, double[] value) {
+    if (index.length!=value.length)
+      throw new IllegalArgumentException("Got "+index.length+" indices but "+value.length+" values");
+    this.size=size;
+    this.nonZero=index.length;
+    this.index=index;
+    this.value=value;
+  }
+
+  /**
+   * Create sparse features from other features
+   * @param features the features
+   */
+  public SparseFeatures(FeatureView features) {
+    size=features.size();
+    index=new int[size];
+    value=new double[size];
+    for (int i=0; i<size; i++) {
+      double v=features.getValue(i);
+      if (v!=0) {
+        index[nonZero]=i;
+        value[nonZero++]=v;
+      }
+    }
+    index=Arrays.copyOf(index, nonZero);
+    value=Arrays.copyOf(value, nonZero);
+  }
+
+  /**
+   * Make these sparse features hold other features instead, reusing the arrays when they are large enough
+   * @param features the features
+   */
+  public void assign(FeatureView features) {
+    size=features.size();
+    if (index.length<size) {
+      index=new int[size];
+      value=new double[size];
+    }
+    nonZero=0;
+    for (int i=0; i<size; i++) {
+      double v=features.getValue(i);
+      if (v!=0) {
+        index[nonZero]=i;
+        value[nonZero++]=v;
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Determine the number of features that are not 0
+   * @return the number of features that are not 0
+   */
+  public int getNonZeroCount() {
+    return nonZero;
+  }
+
+  public double getValue(int i) {
+    int k=Arrays.binarySearch(index, 0, nonZero, i);
+    return k>=0?value[k]:0.0;
+  }
+
+  public boolean isSet(int i) {
+    return getValue(i) > 0;
+  }
+}